@@ -30,10 +30,12 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
 import org.odk.collect.android.listeners.DiskSyncListener;
+import org.odk.collect.android.listeners.FormCompilationListener;
+import org.odk.collect.android.logic.FormDefCompiler;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.tasks.DiskSyncTask;
 import org.odk.collect.android.utilities.ApplicationConstants;
-import org.odk.collect.android.utilities.VersionHidingCursorAdapter;
+import org.odk.collect.android.utilities.FormCacheStatusCursorAdapter;
 
 import timber.log.Timber;
 
@@ -44,7 +46,8 @@ import timber.log.Timber;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  * @author Carl Hartung (carlhartung@gmail.com)
  */
-public class FormChooserList extends FormListActivity implements DiskSyncListener, AdapterView.OnItemClickListener {
+public class FormChooserList extends FormListActivity implements DiskSyncListener,
+        FormCompilationListener, AdapterView.OnItemClickListener {
     private static final String FORM_CHOOSER_LIST_SORTING_ORDER = "formChooserListSortingOrder";
 
     private static final boolean EXIT = true;
@@ -136,6 +139,7 @@ public class FormChooserList extends FormListActivity implements DiskSyncListene
     @Override
     protected void onResume() {
         diskSyncTask.setDiskSyncListener(this);
+        FormDefCompiler.getInstance().setFormCompilationListener(this);
         super.onResume();
 
         if (diskSyncTask.getStatus() == AsyncTask.Status.FINISHED) {
@@ -147,6 +151,7 @@ public class FormChooserList extends FormListActivity implements DiskSyncListene
     @Override
     protected void onPause() {
         diskSyncTask.setDiskSyncListener(null);
+        FormDefCompiler.getInstance().setFormCompilationListener(null);
         super.onPause();
     }
 
@@ -175,16 +180,30 @@ public class FormChooserList extends FormListActivity implements DiskSyncListene
         tv.setText(result.trim());
     }
 
+    /**
+     * Called by FormDefCompiler when a form's cache has been built
+     */
+    @Override
+    public void formCompiled(String formPath) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                updateAdapter();
+            }
+        });
+    }
+
     private void setupAdapter() {
         String[] data = new String[]{
-                FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT, FormsColumns.JR_VERSION
+                FormsColumns.DISPLAY_NAME, FormsColumns.DISPLAY_SUBTEXT, FormsColumns.JR_VERSION,
+                FormsColumns.JRCACHE_FILE_PATH
         };
         int[] view = new int[]{
-                R.id.text1, R.id.text2, R.id.text3
+                R.id.text1, R.id.text2, R.id.text3, R.id.text4
         };
 
         listAdapter =
-                new VersionHidingCursorAdapter(FormsColumns.JR_VERSION, this, R.layout.two_item, getCursor(), data, view);
+                new FormCacheStatusCursorAdapter(FormsColumns.JR_VERSION, this, R.layout.two_item, getCursor(), data, view);
 
         listView.setAdapter(listAdapter);
     }
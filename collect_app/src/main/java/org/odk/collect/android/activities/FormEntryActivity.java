@@ -74,6 +74,8 @@ import org.odk.collect.android.dao.FormsDao;
 import org.odk.collect.android.dao.InstancesDao;
 import org.odk.collect.android.exception.GDriveConnectionException;
 import org.odk.collect.android.exception.JavaRosaException;
+import org.odk.collect.android.external.ExternalDataManager;
+import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.listeners.FormSavedListener;
@@ -89,7 +91,7 @@ import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.tasks.FormLoaderTask;
-import org.odk.collect.android.tasks.SavePointTask;
+import org.odk.collect.android.tasks.SavePointWriter;
 import org.odk.collect.android.tasks.SaveResult;
 import org.odk.collect.android.tasks.SaveToDiskTask;
 import org.odk.collect.android.utilities.ApplicationConstants;
@@ -103,6 +105,7 @@ import org.odk.collect.android.widgets.StringWidget;
 import java.io.File;
 import java.io.FileFilter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -207,6 +210,7 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
 
     private AlertDialog alertDialog;
     private ProgressDialog progressDialog;
+    private ProgressDialog externalDataDialog;
     private String errorMessage;
     private boolean shownAlertDialogIsGroupRepeat;
 
@@ -545,15 +549,10 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
 
     /**
      * Create save-points asynchronously in order to not affect swiping performance
-     * on larger forms.
+     * on larger forms. Requests made while swiping quickly are written as one.
      */
     private void nonblockingCreateSavePointData() {
-        try {
-            SavePointTask savePointTask = new SavePointTask(this);
-            savePointTask.execute();
-        } catch (Exception e) {
-            Timber.e("Could not schedule SavePointTask. Perhaps a lot of swiping is taking place?");
-        }
+        SavePointWriter.getInstance().request(this);
     }
 
     @Override
@@ -573,7 +572,7 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
                         formController.getXPath(waiting));
             }
             // save the instance to a temp path...
-            nonblockingCreateSavePointData();
+            SavePointWriter.getInstance().requestNow(this);
         }
         outState.putBoolean(NEWFORM, false);
         outState.putString(KEY_ERROR, errorMessage);
@@ -1220,6 +1219,10 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
                 // should only be a group here if the event_group is a field-list
                 try {
                     FormEntryPrompt[] prompts = formController.getQuestionPrompts();
+                    if (waitForExternalData(prompts)) {
+                        // the view is created once the data has been imported
+                        return new EmptyView(this);
+                    }
                     FormEntryCaption[] groups = formController
                             .getGroupsForCurrentIndex();
                     odkv = new ODKView(this, formController.getQuestionPrompts(),
@@ -1282,6 +1285,65 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
         }
     }
 
+    /**
+     * Shows a progress dialog and waits in the background if any of the questions lists choices
+     * from an external data set that is still being imported, then refreshes the view.
+     *
+     * @return true if there is something to wait for
+     */
+    private boolean waitForExternalData(FormEntryPrompt[] prompts) {
+        final ExternalDataManager externalDataManager =
+                Collect.getInstance().getExternalDataManager();
+        if (externalDataManager == null) {
+            return false;
+        }
+        if (externalDataDialog != null && externalDataDialog.isShowing()) {
+            return true;
+        }
+
+        final List<String> pending = new ArrayList<String>();
+        for (FormEntryPrompt prompt : prompts) {
+            String dataSetName = ExternalDataUtil.getSearchDataSetName(
+                    prompt.getAppearanceHint());
+            if (dataSetName != null && !externalDataManager.isReady(dataSetName)) {
+                pending.add(dataSetName);
+            }
+        }
+        if (pending.isEmpty()) {
+            return false;
+        }
+
+        Timber.i("Waiting for the import of %s", pending);
+        externalDataDialog = new ProgressDialog(this);
+        externalDataDialog.setMessage(getString(R.string.ext_import_waiting_message));
+        externalDataDialog.setIndeterminate(true);
+        externalDataDialog.setCancelable(false);
+        externalDataDialog.show();
+
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                for (String dataSetName : pending) {
+                    // imports the data set or waits for its background import
+                    externalDataManager.getDatabase(dataSetName, false);
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (externalDataDialog != null && externalDataDialog.isShowing()) {
+                    externalDataDialog.dismiss();
+                }
+                externalDataDialog = null;
+                if (!isFinishing()) {
+                    refreshCurrentView();
+                }
+            }
+        }.execute();
+        return true;
+    }
+
     /**
      * Disables the back button if it is first question....
      */
@@ -1967,6 +2029,8 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
 
                                 // close all open databases of external data.
                                 Collect.getInstance().getExternalDataManager().close();
+                                Collect.getInstance().getFormController().getItemsetQueryCache()
+                                        .close();
 
                                 timerLogger.logTimerEvent(TimerLogger.EventTypes.FORM_EXIT, 0, null, false, true);
                                 removeTempInstance();
@@ -1993,12 +2057,8 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
         FormController formController = Collect.getInstance()
                 .getFormController();
 
-        // attempt to remove any scratch file
-        File temp = SaveToDiskTask.savepointFile(formController
-                .getInstancePath());
-        if (temp.exists()) {
-            temp.delete();
-        }
+        // remove any scratch file, once no savepoint is being written
+        SavePointWriter.getInstance().discard(formController);
 
         boolean erase = false;
         {
@@ -2273,6 +2333,9 @@ public class FormEntryActivity extends AppCompatActivity implements AnimationLis
         if (alertDialog != null && alertDialog.isShowing()) {
             alertDialog.dismiss();
         }
+        if (externalDataDialog != null && externalDataDialog.isShowing()) {
+            externalDataDialog.dismiss();
+        }
     }
 
     @Override
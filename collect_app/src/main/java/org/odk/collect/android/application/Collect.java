@@ -36,6 +36,7 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.database.ActivityLogger;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormDefPool;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.AutoSendPreferenceMigrator;
 import org.odk.collect.android.utilities.LocaleHelper;
@@ -274,6 +275,12 @@ public class Collect extends Application {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        FormDefPool.getInstance().onTrimMemory(level);
+    }
+
     /**
      * Gets the default {@link Tracker} for this {@link Application}.
      *
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Persistent index of file md5 hashes keyed by (absolute path, length, last modified).
+ *
+ * Hashing a form definition or media file means reading all of it, and the same unchanged files
+ * are hashed on every form load, every disk sync and every provider insert. The index returns the
+ * recorded hash as long as the file's length and modification time still match and only rehashes
+ * files that changed. Lookups are served from memory; the database only keeps the index across
+ * restarts.
+ */
+public final class FileHashIndex {
+
+    private static final String DATABASE_NAME = "filehashes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "file_hashes";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_MD5 = "md5";
+
+    private static final String CREATE_TABLE =
+            "create table " + TABLE + " (" + KEY_PATH + " text primary key, "
+                    + KEY_LENGTH + " integer not null, "
+                    + KEY_LAST_MODIFIED + " integer not null, "
+                    + KEY_MD5 + " text not null);";
+
+    // Modification times on sdcard file systems can be as coarse as two seconds, so a file that
+    // changed very recently may change again without its timestamp moving. Such files are hashed
+    // but not remembered.
+    private static final long UNSTABLE_WINDOW_MS = 3000;
+
+    private static FileHashIndex instance;
+
+    private final Map<String, Fingerprint> fingerprints = new HashMap<String, Fingerprint>();
+    private DatabaseHelper dbHelper;
+    private boolean loaded = false;
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Timber.w("Upgrading database from version %d to %d, which will destroy all old data",
+                    oldVersion, newVersion);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            onCreate(db);
+        }
+    }
+
+    private FileHashIndex() {
+    }
+
+    public static synchronized FileHashIndex getInstance() {
+        if (instance == null) {
+            instance = new FileHashIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the md5 hash of the given file, computing it only if the file is not in the index or
+     * has changed since it was indexed.
+     *
+     * @return the hash or null if the file cannot be read
+     */
+    public String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (this) {
+            loadIfNeeded();
+            Fingerprint fingerprint = fingerprints.get(path);
+            if (fingerprint != null && fingerprint.matches(length, lastModified)) {
+                return fingerprint.md5;
+            }
+        }
+
+        String md5 = FileUtils.computeMd5Hash(file);
+        if (md5 == null || lastModified == 0
+                || System.currentTimeMillis() - lastModified < UNSTABLE_WINDOW_MS) {
+            return md5;
+        }
+
+        synchronized (this) {
+            Fingerprint fingerprint = new Fingerprint(length, lastModified, md5);
+            fingerprints.put(path, fingerprint);
+            persist(path, fingerprint);
+        }
+        return md5;
+    }
+
+    /**
+     * Forgets the recorded hash of a file, e.g. because it is about to be deleted or replaced.
+     */
+    public synchronized void remove(File file) {
+        String path = file.getAbsolutePath();
+        if (fingerprints.remove(path) != null) {
+            SQLiteDatabase db = getDatabase();
+            if (db != null) {
+                db.delete(TABLE, KEY_PATH + "=?", new String[]{path});
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of files that no longer exist.
+     */
+    public synchronized void removeMissingFiles() {
+        loadIfNeeded();
+        List<String> missing = new ArrayList<String>();
+        for (String path : fingerprints.keySet()) {
+            if (!new File(path).exists()) {
+                missing.add(path);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getDatabase();
+        if (db != null) {
+            db.beginTransaction();
+        }
+        try {
+            for (String path : missing) {
+                fingerprints.remove(path);
+                if (db != null) {
+                    db.delete(TABLE, KEY_PATH + "=?", new String[]{path});
+                }
+            }
+            if (db != null) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (db != null) {
+                db.endTransaction();
+            }
+        }
+        Timber.i("Removed %d missing files from the hash index", missing.size());
+    }
+
+    private void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            return;
+        }
+        Cursor c = null;
+        try {
+            c = db.query(TABLE, null, null, null, null, null, null);
+            int pathColumn = c.getColumnIndex(KEY_PATH);
+            int lengthColumn = c.getColumnIndex(KEY_LENGTH);
+            int lastModifiedColumn = c.getColumnIndex(KEY_LAST_MODIFIED);
+            int md5Column = c.getColumnIndex(KEY_MD5);
+            while (c.moveToNext()) {
+                fingerprints.put(c.getString(pathColumn), new Fingerprint(c.getLong(lengthColumn),
+                        c.getLong(lastModifiedColumn), c.getString(md5Column)));
+            }
+        } catch (RuntimeException e) {
+            Timber.e(e, "Unable to load the file hash index");
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void persist(String path, Fingerprint fingerprint) {
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(KEY_PATH, path);
+        values.put(KEY_LENGTH, fingerprint.length);
+        values.put(KEY_LAST_MODIFIED, fingerprint.lastModified);
+        values.put(KEY_MD5, fingerprint.md5);
+        try {
+            db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (RuntimeException e) {
+            Timber.e(e, "Unable to record the hash of %s", path);
+        }
+    }
+
+    /**
+     * The index keeps working from memory alone if the database cannot be opened.
+     */
+    private SQLiteDatabase getDatabase() {
+        try {
+            if (dbHelper == null) {
+                dbHelper = new DatabaseHelper();
+            }
+            return dbHelper.getWritableDatabase();
+        } catch (RuntimeException e) {
+            Timber.e(e, "Unable to open the file hash index");
+            return null;
+        }
+    }
+
+    private static class Fingerprint {
+        final long length;
+        final long lastModified;
+        final String md5;
+
+        Fingerprint(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+
+        boolean matches(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+}
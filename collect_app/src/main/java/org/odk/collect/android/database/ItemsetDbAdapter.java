@@ -7,10 +7,14 @@ import android.database.sqlite.SQLiteDatabase;
 
 import org.odk.collect.android.application.Collect;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
+import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
 
 public class ItemsetDbAdapter {
@@ -22,7 +26,8 @@ public class ItemsetDbAdapter {
 
     public static final String DATABASE_NAME = "itemsets.db";
     private static final String DATABASE_TABLE = "itemset_";
-    private static final int DATABASE_VERSION = 2;
+    // 3 added the indexes of the itemset tables, which are imported again on upgrade
+    private static final int DATABASE_VERSION = 3;
 
     private static final String ITEMSET_TABLE = "itemsets";
     private static final String KEY_ITEMSET_HASH = "hash";
@@ -52,16 +57,23 @@ public class ItemsetDbAdapter {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Timber.w("Upgrading database from version %d to %d, which will destroy all old data", oldVersion, newVersion);
-            // first drop all of our generated itemset tables
-            Cursor c = db.query(ITEMSET_TABLE, null, null, null, null, null, null);
-            if (c != null) {
-                c.move(-1);
+            // first drop all of our generated itemset tables. They are named after the path of
+            // their itemsets.csv, not after its hash, so they are found by name.
+            List<String> tables = new ArrayList<String>();
+            Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                    + " AND name LIKE '" + DATABASE_TABLE + "%'", null);
+            try {
                 while (c.moveToNext()) {
-                    String table = c.getString(c.getColumnIndex(KEY_ITEMSET_HASH));
-                    db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + table);
+                    tables.add(c.getString(0));
                 }
+            } finally {
                 c.close();
             }
+            for (String table : tables) {
+                if (!table.equals(ITEMSET_TABLE)) {
+                    db.execSQL("DROP TABLE IF EXISTS \"" + table + "\"");
+                }
+            }
 
             // then drop the table tracking itemsets itself
             db.execSQL("DROP TABLE IF EXISTS " + ITEMSET_TABLE);
@@ -123,18 +135,16 @@ public class ItemsetDbAdapter {
         return true;
     }
 
-    public boolean addRow(String tableName, String[] columns, String[] newRow) {
-        ContentValues cv = new ContentValues();
-
-        // rows don't necessarily use all the columns
-        // but a column is guaranteed to exist for a row (or else blow up)
-        for (int i = 0; i < newRow.length; i++) {
-            if (!columns[i].isEmpty()) {
-                cv.put("\"" + columns[i] + "\"", newRow[i]);
-            }
-        }
-        db.insert(DATABASE_TABLE + tableName, null, cv);
-        return true;
+    /**
+     * Imports the rows of an itemsets.csv into the table made by
+     * {@link #createTable(String, String, String[], String)} and indexes it.
+     *
+     * @return the number of rows imported, which is incomplete if the listener cancelled
+     */
+    public int importRows(String pathHash, String[] columns, CSVReader reader,
+            ItemsetImporter.Listener listener) throws IOException {
+        return new ItemsetImporter(db, DATABASE_TABLE + pathHash, columns).insertAll(reader,
+                listener);
     }
 
     public boolean tableExists(String tableName) {
@@ -154,14 +164,6 @@ public class ItemsetDbAdapter {
 
     }
 
-    public void beginTransaction() {
-        db.execSQL("BEGIN");
-    }
-
-    public void commit() {
-        db.execSQL("COMMIT");
-    }
-
     public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
         return db.query(true, DATABASE_TABLE + hash, null, selection, selectionArgs,
                 null, null, null, null);
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Inserts the rows of an itemsets.csv into the table created for it by {@link ItemsetDbAdapter}.
+ *
+ * All rows go through a single compiled INSERT statement and are committed in batches, so a large
+ * cascade neither holds one huge transaction nor commits every row. The indexes are created once
+ * all rows are in. Unlike the databases of external data, itemsets.db holds the itemsets of every
+ * form, so its journal is left alone; a table whose import did not complete is dropped by the
+ * caller and imported again.
+ */
+public final class ItemsetImporter {
+
+    static final int BATCH_SIZE = 5000;
+
+    public interface Listener {
+        boolean isCancelled();
+    }
+
+    private final SQLiteDatabase db;
+    private final String tableName;
+    private final String[] columns;
+    // the parameter of each CSV column in the INSERT statement, or 0 if the column is not stored
+    private final int[] parameters;
+    private final String sql;
+
+    ItemsetImporter(SQLiteDatabase db, String tableName, String[] columns) {
+        this.db = db;
+        this.tableName = tableName;
+        this.columns = columns;
+        parameters = new int[columns.length];
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        int parameter = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].isEmpty()) {
+                continue;
+            }
+            // double quotes in case the column is of label:lang
+            names.append(parameter == 0 ? "\"" : ", \"").append(columns[i]).append('"');
+            values.append(parameter == 0 ? "?" : ", ?");
+            parameters[i] = ++parameter;
+        }
+        sql = "INSERT INTO " + tableName + " (" + names + ") VALUES (" + values + ")";
+    }
+
+    /**
+     * Inserts every remaining row of the reader.
+     *
+     * @return the number of rows inserted, which is incomplete if the listener cancelled
+     */
+    int insertAll(CSVReader reader, Listener listener) throws IOException {
+        SQLiteStatement insert = db.compileStatement(sql);
+        int rowCount = 0;
+        try {
+            db.beginTransaction();
+            try {
+                String[] row = reader.readNext();
+                while (row != null) {
+                    if (containsAnyData(row)) {
+                        bind(insert, row);
+                        insert.executeInsert();
+                        rowCount++;
+
+                        if (rowCount % BATCH_SIZE == 0) {
+                            db.setTransactionSuccessful();
+                            db.endTransaction();
+                            if (listener.isCancelled()) {
+                                return rowCount;
+                            }
+                            db.beginTransaction();
+                        }
+                    }
+                    row = reader.readNext();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                if (db.inTransaction()) {
+                    db.endTransaction();
+                }
+            }
+            createIndexes();
+            return rowCount;
+        } finally {
+            insert.close();
+        }
+    }
+
+    private void bind(SQLiteStatement insert, String[] row) {
+        insert.clearBindings();
+        int count = Math.min(row.length, columns.length);
+        for (int i = 0; i < count; i++) {
+            // values missing from short rows stay null, as they always have
+            if (parameters[i] != 0 && row[i] != null) {
+                insert.bindString(parameters[i], row[i]);
+            }
+        }
+    }
+
+    /**
+     * Indexes the list name, together with each column that choice filters can select items by, so
+     * that every level of a cascading select is a lookup rather than a scan of the table.
+     */
+    void createIndexes() {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + tableName + "_list_name_idx ON " + tableName
+                + " (list_name)");
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (column.isEmpty() || column.equals("list_name") || column.equals("name")
+                    || column.equals("label") || column.startsWith("label::")) {
+                continue;
+            }
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + tableName + "_" + i + "_idx ON "
+                    + tableName + " (list_name, \"" + column + "\")");
+        }
+    }
+
+    private static boolean containsAnyData(String[] row) {
+        for (String value : row) {
+            if (value != null && value.trim().length() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
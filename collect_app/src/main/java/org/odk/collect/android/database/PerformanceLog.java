@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.PhaseTimer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Rolling store of the phase timings recorded by {@link PhaseTimer} while forms are loaded,
+ * saved and uploaded. Only the most recent timings are kept, but every timing is also counted
+ * in a per form, per phase histogram with power-of-two millisecond buckets.
+ *
+ * The database is "/sdcard/odk/log/performance.db".
+ */
+public final class PerformanceLog {
+
+    private static final String DATABASE_NAME = "performance.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TIMINGS_TABLE = "timings";
+    private static final String HISTOGRAM_TABLE = "histogram";
+
+    private static final String ID = "_id";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String OPERATION = "operation";
+    private static final String PHASE = "phase";
+    private static final String FORM_ID = "form_id";
+    private static final String INSTANCE = "instance";
+    private static final String DURATION = "duration_ms";
+    private static final String BYTES = "bytes";
+    private static final String BUCKET = "bucket";
+    private static final String COUNT = "count";
+
+    private static final String CREATE_TIMINGS_TABLE =
+            "create table " + TIMINGS_TABLE + " ("
+                    + ID + " integer primary key autoincrement, "
+                    + TIMESTAMP + " integer not null, "
+                    + OPERATION + " text not null, "
+                    + PHASE + " text not null, "
+                    + FORM_ID + " text, "
+                    + INSTANCE + " text, "
+                    + DURATION + " integer not null, "
+                    + BYTES + " integer);";
+
+    private static final String CREATE_HISTOGRAM_TABLE =
+            "create table " + HISTOGRAM_TABLE + " ("
+                    + FORM_ID + " text not null, "
+                    + OPERATION + " text not null, "
+                    + PHASE + " text not null, "
+                    + BUCKET + " integer not null, "
+                    + COUNT + " integer not null, "
+                    + "primary key (" + FORM_ID + ", " + OPERATION + ", " + PHASE + ", "
+                    + BUCKET + "));";
+
+    private static final int MAX_TIMINGS = 10000;
+
+    private static PerformanceLog instance;
+
+    private final DatabaseHelper dbHelper = new DatabaseHelper();
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+
+        DatabaseHelper() {
+            super(Collect.LOG_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+            new File(Collect.LOG_PATH).mkdirs();
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_TIMINGS_TABLE);
+            db.execSQL(CREATE_HISTOGRAM_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TIMINGS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + HISTOGRAM_TABLE);
+            onCreate(db);
+        }
+    }
+
+    private PerformanceLog() {
+    }
+
+    public static synchronized PerformanceLog getInstance() {
+        if (instance == null) {
+            instance = new PerformanceLog();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the histogram bucket of a duration: 0 for up to 1 ms, n for up to 2^n ms
+     */
+    public static int getBucket(long durationMs) {
+        int bucket = 0;
+        while (bucket < 62 && (1L << bucket) < durationMs) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public synchronized void record(List<PhaseTimer.Timing> timings) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (PhaseTimer.Timing timing : timings) {
+                ContentValues values = new ContentValues();
+                values.put(TIMESTAMP, timing.timestamp);
+                values.put(OPERATION, timing.operation);
+                values.put(PHASE, timing.phase);
+                values.put(FORM_ID, timing.formId);
+                values.put(INSTANCE, timing.instance);
+                values.put(DURATION, timing.durationMs);
+                if (timing.bytes >= 0) {
+                    values.put(BYTES, timing.bytes);
+                }
+                db.insert(TIMINGS_TABLE, null, values);
+
+                String formId = timing.formId == null ? "" : timing.formId;
+                String bucket = String.valueOf(getBucket(timing.durationMs));
+                db.execSQL("INSERT OR IGNORE INTO " + HISTOGRAM_TABLE + " VALUES (?, ?, ?, ?, 0)",
+                        new Object[]{formId, timing.operation, timing.phase, bucket});
+                db.execSQL("UPDATE " + HISTOGRAM_TABLE + " SET " + COUNT + " = " + COUNT
+                                + " + 1 WHERE " + FORM_ID + " = ? AND " + OPERATION + " = ? AND "
+                                + PHASE + " = ? AND " + BUCKET + " = ?",
+                        new Object[]{formId, timing.operation, timing.phase, bucket});
+            }
+
+            // roll over
+            db.execSQL("DELETE FROM " + TIMINGS_TABLE + " WHERE " + ID + " <= (SELECT MAX(" + ID
+                    + ") FROM " + TIMINGS_TABLE + ") - " + MAX_TIMINGS);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public synchronized long getTimingCount() {
+        return DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(), TIMINGS_TABLE);
+    }
+
+    public synchronized void clear() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.delete(TIMINGS_TABLE, null, null);
+        db.delete(HISTOGRAM_TABLE, null, null);
+    }
+
+    /**
+     * Writes the recorded timings and the histograms as two CSV files.
+     */
+    public synchronized void exportCsv(File timingsFile, File histogramFile) throws IOException {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        exportTable(db.query(TIMINGS_TABLE, new String[]{TIMESTAMP, OPERATION, PHASE, FORM_ID,
+                INSTANCE, DURATION, BYTES}, null, null, null, null, ID), timingsFile);
+        exportTable(db.query(HISTOGRAM_TABLE, new String[]{FORM_ID, OPERATION, PHASE,
+                "(1 << " + BUCKET + ") AS max_ms", COUNT}, null, null, null, null,
+                FORM_ID + ", " + OPERATION + ", " + PHASE + ", " + BUCKET), histogramFile);
+    }
+
+    private static void exportTable(Cursor c, File file) throws IOException {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    "UTF-8"));
+            int columns = c.getColumnCount();
+            for (int i = 0; i < columns; i++) {
+                writer.write((i > 0 ? "," : "") + c.getColumnName(i));
+            }
+            writer.write("\n");
+            while (c.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    writer.write((i > 0 ? "," : "") + escape(c.getString(i)));
+                }
+                writer.write("\n");
+            }
+        } finally {
+            c.close();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -21,21 +21,25 @@ package org.odk.collect.android.external;
 
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
 import org.javarosa.core.model.QuestionDef;
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectMultiData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.model.utils.DateUtils;
-import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormAnswerDataSerializer;
-import org.javarosa.xpath.expr.XPathFuncExpr;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import timber.log.Timber;
 
@@ -46,125 +50,145 @@ import timber.log.Timber;
  */
 public class ExternalAnswerResolver extends DefaultAnswerResolver {
 
+    /**
+     * The questions of each form by the generic reference of their binds, with the selects that
+     * have search() appearances worked out and null for the others. Built once per form, so that
+     * restoring an instance with many repeated selects does not look up each node's question,
+     * parse its appearance and scan its choices again.
+     */
+    private static final Map<FormDef, Map<TreeReference, DynamicSelect>> PLANS =
+            new WeakHashMap<FormDef, Map<TreeReference, DynamicSelect>>();
+
+    /**
+     * A select whose choices come from search(). Its static choices are the choices with integer
+     * values before its first other choice, which stands for the dynamic ones.
+     */
+    private static class DynamicSelect {
+        final int controlType;
+        final Map<String, SelectChoice> staticChoices = new HashMap<String, SelectChoice>();
+        // the index of the choice standing for the dynamic ones, or -1 if there is none
+        int dynamicChoiceIndex = -1;
+
+        DynamicSelect(QuestionDef questionDef) {
+            controlType = questionDef.getControlType();
+            List<SelectChoice> choices = questionDef.getChoices();
+            for (int index = 0; choices != null && index < choices.size(); index++) {
+                SelectChoice selectChoice = choices.get(index);
+                String selectChoiceValue = selectChoice.getValue();
+                if (!ExternalDataUtil.isAnInteger(selectChoiceValue)) {
+                    dynamicChoiceIndex = index;
+                    break;
+                }
+                if (!staticChoices.containsKey(selectChoiceValue)) {
+                    staticChoices.put(selectChoiceValue, selectChoice);
+                }
+            }
+        }
+    }
+
     @Override
     public IAnswerData resolveAnswer(String textVal, TreeElement treeElement, FormDef formDef) {
-        QuestionDef questionDef = XFormParser.ghettoGetQuestionDef(treeElement.getDataType(),
-                formDef, treeElement.getRef());
-        if (questionDef != null && (questionDef.getControlType() == Constants.CONTROL_SELECT_ONE
-                || questionDef.getControlType() == Constants.CONTROL_SELECT_MULTI)) {
-            boolean containsSearchExpression = false;
-
-            XPathFuncExpr xpathExpression = null;
-            try {
-                xpathExpression = ExternalDataUtil.getSearchXPathExpression(
-                        questionDef.getAppearanceAttr());
-            } catch (Exception e) {
-                Timber.e(e);
-                // there is a search expression, but has syntax errors
-                containsSearchExpression = true;
+        // only choices have a question, see XFormParser.ghettoGetQuestionDef
+        int dataType = treeElement.getDataType();
+        if (dataType == Constants.DATATYPE_CHOICE || dataType == Constants.DATATYPE_CHOICE_LIST) {
+            DynamicSelect dynamicSelect = getPlan(formDef).get(treeElement.getRef().genericize());
+            if (dynamicSelect != null) {
+                return resolveDynamicAnswer(dynamicSelect, textVal, treeElement);
+            }
+        }
+        // default behavior matches original behavior (for static selects, etc.)
+        return super.resolveAnswer(textVal, treeElement, formDef);
+    }
+
+    private IAnswerData resolveDynamicAnswer(DynamicSelect dynamicSelect, String textVal,
+            TreeElement treeElement) {
+        SelectChoice staticChoice = dynamicSelect.staticChoices.get(textVal);
+        if (staticChoice != null) {
+            if (dynamicSelect.controlType == Constants.CONTROL_SELECT_ONE) {
+                // This means that the user selected a static selection. Although the default
+                // implementation would catch this and return the right thing, we just need to
+                // make sure, so we will override that.
+                return new SelectOneData(staticChoice.selection());
             }
+            // copied from org.javarosa.xform.util.XFormAnswerDataParser.getSelections()
+            List<String> textValues = DateUtils.split(textVal,
+                    XFormAnswerDataSerializer.DELIMITER, true);
+            if (textValues.contains(textVal)) {
+                // this means that the user selected ONLY the static answer, so just return that.
+                // Otherwise the static selection is returned together with the dynamic ones.
+                List<Selection> customSelections = new ArrayList<Selection>();
+                customSelections.add(staticChoice.selection());
+                return new SelectMultiData(customSelections);
+            }
+        }
 
-            if (xpathExpression != null || containsSearchExpression) {
-                // that means that we have dynamic selects
-
-                // read the static choices from the options sheet
-                List<SelectChoice> staticChoices = questionDef.getChoices();
-                for (int index = 0; index < staticChoices.size(); index++) {
-                    SelectChoice selectChoice = staticChoices.get(index);
-                    String selectChoiceValue = selectChoice.getValue();
-                    if (ExternalDataUtil.isAnInteger(selectChoiceValue)) {
-
-                        Selection selection = selectChoice.selection();
-
-                        switch (questionDef.getControlType()) {
-                            case Constants.CONTROL_SELECT_ONE: {
-                                if (selectChoiceValue.equals(textVal)) {
-                                    // This means that the user selected a static selection.
-                                    //
-                                    // Although (for select1 fields) the default implementation
-                                    // will catch this and return the right thing
-                                    // (if we call super.resolveAnswer(textVal, treeElement,
-                                    // formDef))
-                                    // we just need to make sure, so we will override that.
-                                    if (questionDef.getControlType()
-                                            == Constants.CONTROL_SELECT_ONE) {
-                                        // we don't need another, just return the static choice.
-                                        return new SelectOneData(selection);
-                                    }
-                                }
-                                break;
-                            }
-                            case Constants.CONTROL_SELECT_MULTI: {
-                                // we should search in a potential comma-separated string of
-                                // values for a match
-                                // copied from org.javarosa.xform.util.XFormAnswerDataParser
-                                // .getSelections()
-                                List<String> textValues = DateUtils.split(textVal,
-                                        XFormAnswerDataSerializer.DELIMITER, true);
-                                if (textValues.contains(textVal)) {
-                                    // this means that the user has selected AT LEAST the static
-                                    // choice.
-                                    if (selectChoiceValue.equals(textVal)) {
-                                        // this means that the user selected ONLY the static
-                                        // answer, so just return that
-                                        List<Selection> customSelections =
-                                                new ArrayList<Selection>();
-                                        customSelections.add(selection);
-                                        return new SelectMultiData(customSelections);
-                                    } else {
-                                        // we will ignore it for now since we will return that
-                                        // selection together with the dynamic ones.
-                                    }
-                                }
-                                break;
-                            }
-                            default: {
-                                // There is a bug if we get here, so let's throw an Exception
-                                throw createBugRuntimeException(treeElement, textVal);
-                            }
-                        }
-
-                    } else {
-                        switch (questionDef.getControlType()) {
-                            case Constants.CONTROL_SELECT_ONE: {
-                                // the default implementation will search for the "textVal"
-                                // (saved answer) inside the static choices.
-                                // Since we know that there isn't such, we just wrap the textVal
-                                // in a virtual choice in order to
-                                // create a SelectOneData object to be used as the IAnswer to the
-                                // TreeElement.
-                                // (the caller of this function is searching for such an answer
-                                // to populate the in-memory model.)
-                                SelectChoice customSelectChoice = new SelectChoice(textVal, textVal,
-                                        false);
-                                customSelectChoice.setIndex(index);
-                                return new SelectOneData(customSelectChoice.selection());
-                            }
-                            case Constants.CONTROL_SELECT_MULTI: {
-                                // we should create multiple selections and add them to the pile
-                                List<SelectChoice> customSelectChoices = createCustomSelectChoices(
-                                        textVal);
-                                List<Selection> customSelections = new ArrayList<Selection>();
-                                for (SelectChoice customSelectChoice : customSelectChoices) {
-                                    customSelections.add(customSelectChoice.selection());
-                                }
-                                return new SelectMultiData(customSelections);
-                            }
-                            default: {
-                                // There is a bug if we get here, so let's throw an Exception
-                                throw createBugRuntimeException(treeElement, textVal);
-                            }
-                        }
-
-                    }
-                }
+        if (dynamicSelect.dynamicChoiceIndex == -1) {
+            // if we get there then that means that we have a bug
+            throw createBugRuntimeException(treeElement, textVal);
+        }
 
-                // if we get there then that means that we have a bug
-                throw createBugRuntimeException(treeElement, textVal);
+        if (dynamicSelect.controlType == Constants.CONTROL_SELECT_ONE) {
+            // the default implementation will search for the "textVal" (saved answer) inside the
+            // static choices. Since we know that there isn't such, we just wrap the textVal in a
+            // virtual choice in order to create a SelectOneData object to be used as the IAnswer
+            // to the TreeElement. (the caller of this function is searching for such an answer
+            // to populate the in-memory model.)
+            SelectChoice customSelectChoice = new SelectChoice(textVal, textVal, false);
+            customSelectChoice.setIndex(dynamicSelect.dynamicChoiceIndex);
+            return new SelectOneData(customSelectChoice.selection());
+        } else {
+            // we should create multiple selections and add them to the pile
+            List<SelectChoice> customSelectChoices = createCustomSelectChoices(textVal);
+            List<Selection> customSelections = new ArrayList<Selection>();
+            for (SelectChoice customSelectChoice : customSelectChoices) {
+                customSelections.add(customSelectChoice.selection());
             }
+            return new SelectMultiData(customSelections);
+        }
+    }
+
+    private static Map<TreeReference, DynamicSelect> getPlan(FormDef formDef) {
+        synchronized (PLANS) {
+            Map<TreeReference, DynamicSelect> plan = PLANS.get(formDef);
+            if (plan == null) {
+                plan = new HashMap<TreeReference, DynamicSelect>();
+                addQuestions(formDef, plan);
+                PLANS.put(formDef, plan);
+            }
+            return plan;
+        }
+    }
+
+    private static void addQuestions(IFormElement element,
+            Map<TreeReference, DynamicSelect> plan) {
+        if (element instanceof QuestionDef) {
+            QuestionDef questionDef = (QuestionDef) element;
+            // the first question with the reference wins, like in FormDef.findQuestionByRef
+            TreeReference reference = FormInstance.unpackReference(questionDef.getBind());
+            if (!plan.containsKey(reference)) {
+                plan.put(reference, isDynamicSelect(questionDef)
+                        ? new DynamicSelect(questionDef) : null);
+            }
+        } else if (element.getChildren() != null) {
+            for (IFormElement child : element.getChildren()) {
+                addQuestions(child, plan);
+            }
+        }
+    }
+
+    private static boolean isDynamicSelect(QuestionDef questionDef) {
+        if (questionDef.getControlType() != Constants.CONTROL_SELECT_ONE
+                && questionDef.getControlType() != Constants.CONTROL_SELECT_MULTI) {
+            return false;
+        }
+        try {
+            return ExternalDataUtil.getSearchXPathExpression(
+                    questionDef.getAppearanceAttr()) != null;
+        } catch (Exception e) {
+            Timber.e(e);
+            // there is a search expression, but has syntax errors
+            return true;
         }
-        // default behavior matches original behavior (for static selects, etc.)
-        return super.resolveAnswer(textVal, treeElement, formDef);
     }
 
     private RuntimeException createBugRuntimeException(TreeElement treeElement, String textVal) {
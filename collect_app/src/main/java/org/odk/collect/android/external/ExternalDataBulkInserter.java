@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Inserts the rows of an external data CSV into the table created for it by
+ * {@link ExternalSQLiteOpenHelper}.
+ *
+ * The column of every CSV field is worked out once from the header row and all rows go through a
+ * single compiled INSERT statement. Rows are committed in large batches with the rollback journal
+ * and syncing turned off: a database whose import did not complete is deleted and imported again
+ * from the CSV, so there is nothing for the journal to protect.
+ */
+final class ExternalDataBulkInserter {
+
+    static final int BATCH_SIZE = 10000;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    interface Listener {
+        boolean isCancelled();
+
+        void onProgress(int rowCount);
+    }
+
+    private final SQLiteDatabase db;
+    private final int columnCount;
+    // the parameter of each CSV column in the INSERT statement, or 0 if the column is not stored
+    private final int[] parameters;
+    // the parameter of the generated sort column, or 0 if the CSV has its own
+    private final int sortParameter;
+    // the CSV column holding the sort values, or -1 if there is none
+    private final int sortColumn;
+    private final String sql;
+
+    ExternalDataBulkInserter(SQLiteDatabase db, String tableName, String[] headerRow) {
+        this.db = db;
+        columnCount = headerRow.length;
+        parameters = new int[headerRow.length];
+
+        Map<String, String> columnNamesCache = new HashMap<String, String>();
+        StringBuilder columns = new StringBuilder();
+        int parameter = 0;
+        int csvSortColumn = -1;
+        for (int i = 0; i < headerRow.length; i++) {
+            String columnName = headerRow[i].trim();
+            if (columnName.length() == 0) {
+                continue;
+            }
+            String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
+                    columnNamesCache);
+            if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                csvSortColumn = i;
+            }
+            columns.append(parameter == 0 ? "" : ", ").append(safeColumnName);
+            parameters[i] = ++parameter;
+        }
+        if (csvSortColumn == -1) {
+            columns.append(parameter == 0 ? "" : ", ").append(ExternalDataUtil.SORT_COLUMN_NAME);
+            sortParameter = ++parameter;
+        } else {
+            sortParameter = 0;
+        }
+        sortColumn = csvSortColumn;
+
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= parameter; i++) {
+            values.append(i == 1 ? "?" : ", ?");
+        }
+        sql = "INSERT INTO " + tableName + " (" + columns + ") VALUES (" + values + ")";
+    }
+
+    /**
+     * Inserts every remaining row of the reader.
+     *
+     * @return the number of rows inserted, which is incomplete if the listener cancelled
+     */
+    int insertAll(CSVReader reader, Listener listener) throws IOException {
+        String journalMode = setJournalMode("OFF");
+        int synchronous = getSynchronous();
+        db.execSQL("PRAGMA synchronous = OFF");
+        SQLiteStatement insert = db.compileStatement(sql);
+        int rowCount = 0;
+        long lastProgress = System.currentTimeMillis();
+        try {
+            db.beginTransaction();
+            try {
+                String[] row = reader.readNext();
+                while (row != null) {
+                    // SCTO-894 - empty lines are ignored
+                    if (ExternalDataUtil.containsAnyData(row)) {
+                        bind(insert, row, rowCount);
+                        insert.executeInsert();
+                        rowCount++;
+
+                        if (rowCount % BATCH_SIZE == 0) {
+                            db.setTransactionSuccessful();
+                            db.endTransaction();
+                            if (listener.isCancelled()) {
+                                return rowCount;
+                            }
+                            long now = System.currentTimeMillis();
+                            if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                                listener.onProgress(rowCount);
+                                lastProgress = now;
+                            }
+                            db.beginTransaction();
+                        }
+                    }
+                    row = reader.readNext();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                if (db.inTransaction()) {
+                    db.endTransaction();
+                }
+            }
+            listener.onProgress(rowCount);
+            return rowCount;
+        } finally {
+            insert.close();
+            db.execSQL("PRAGMA synchronous = " + synchronous);
+            setJournalMode(journalMode);
+        }
+    }
+
+    private void bind(SQLiteStatement insert, String[] row, int rowIndex) {
+        insert.clearBindings();
+        if (sortParameter != 0) {
+            insert.bindLong(sortParameter, rowIndex + 1);
+        }
+
+        // SCTO-894 - a row with fewer values than the header is filled up with empty strings
+        boolean shortRow = row.length < columnCount;
+        for (int i = 0; i < columnCount; i++) {
+            int parameter = parameters[i];
+            if (parameter == 0) {
+                continue;
+            }
+            String value = i < row.length ? row[i] : null;
+            if (value == null && shortRow) {
+                value = "";
+            }
+
+            if (i == sortColumn) {
+                insert.bindDouble(parameter, ExternalDataUtil.parseSortValue(value));
+            } else if (value == null) {
+                insert.bindNull(parameter);
+            } else {
+                insert.bindString(parameter, value);
+            }
+        }
+    }
+
+    /**
+     * Returns the synchronous setting of the connection as the number that SQLite reports for it.
+     */
+    private int getSynchronous() {
+        Cursor c = db.rawQuery("PRAGMA synchronous", null);
+        try {
+            // FULL is the default of the Android builds of SQLite
+            return c.moveToFirst() ? c.getInt(0) : 2;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the previous journal mode of the database
+     */
+    private String setJournalMode(String mode) {
+        // journal_mode returns a row, so it can't go through execSQL
+        Cursor c = db.rawQuery("PRAGMA journal_mode", null);
+        String previous;
+        try {
+            previous = c.moveToFirst() ? c.getString(0) : "DELETE";
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery("PRAGMA journal_mode = " + mode, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Shares the databases of external data sets between the forms opened during the life of the app.
+ *
+ * Each {@link ExternalDataManager} acquires the database of a data set when the form first needs
+ * it and releases it when the form is saved or closed. A database that is no longer used by any
+ * form is kept open for {@link #IDLE_TIMEOUT_MS}, so that saving and opening forms again and
+ * again does not reopen the same files and lose their page cache. A database has to be evicted
+ * before its file is replaced or changed by an import. Forms that still use an evicted database
+ * keep their helper until they release it, while the others get a new one.
+ */
+public final class ExternalDataConnectionPool {
+
+    static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final ExternalDataConnectionPool INSTANCE = new ExternalDataConnectionPool();
+
+    private static class Connection {
+        final ExternalSQLiteOpenHelper helper;
+        int references;
+        long idleSince;
+
+        Connection(ExternalSQLiteOpenHelper helper) {
+            this.helper = helper;
+        }
+    }
+
+    // by the absolute path of the database
+    private final Map<String, Connection> connections = new HashMap<String, Connection>();
+    // evicted while in use, closed once the last form releases them
+    private final List<Connection> stale = new ArrayList<Connection>();
+    private Handler handler;
+
+    private final Runnable evictIdle = new Runnable() {
+        @Override
+        public void run() {
+            evictIdle(SystemClock.elapsedRealtime());
+        }
+    };
+
+    private ExternalDataConnectionPool() {
+    }
+
+    public static ExternalDataConnectionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the shared helper of the database, which has to be given back through
+     * {@link #release(ExternalSQLiteOpenHelper)}
+     */
+    public synchronized ExternalSQLiteOpenHelper acquire(File dbFile) {
+        String path = dbFile.getAbsolutePath();
+        Connection connection = connections.get(path);
+        if (connection == null) {
+            connection = new Connection(new ExternalSQLiteOpenHelper(dbFile));
+            connections.put(path, connection);
+        }
+        connection.references++;
+        return connection.helper;
+    }
+
+    public synchronized void release(ExternalSQLiteOpenHelper helper) {
+        for (Connection connection : connections.values()) {
+            if (connection.helper == helper) {
+                if (--connection.references == 0) {
+                    connection.idleSince = SystemClock.elapsedRealtime();
+                    scheduleEviction(IDLE_TIMEOUT_MS);
+                }
+                return;
+            }
+        }
+        for (Iterator<Connection> it = stale.iterator(); it.hasNext(); ) {
+            Connection connection = it.next();
+            if (connection.helper == helper) {
+                if (--connection.references == 0) {
+                    Timber.i("Closing evicted database handler:%s", helper.toString());
+                    helper.close();
+                    it.remove();
+                }
+                return;
+            }
+        }
+        Timber.w("Released a database handler that the pool did not hand out:%s",
+                helper.toString());
+        helper.close();
+    }
+
+    /**
+     * Stops handing out the database, e.g. because its file is about to be imported again. It is
+     * closed now if no form uses it, or else once the last form that does releases it.
+     */
+    public synchronized void evict(File dbFile) {
+        Connection connection = connections.remove(dbFile.getAbsolutePath());
+        if (connection == null) {
+            return;
+        }
+        if (connection.references == 0) {
+            Timber.i("Closing %s to import it again", dbFile.getName());
+            connection.helper.close();
+        } else {
+            Timber.i("%s is in use, closing it once it is released", dbFile.getName());
+            stale.add(connection);
+        }
+    }
+
+    synchronized void evictIdle(long now) {
+        long nextEviction = Long.MAX_VALUE;
+        for (Iterator<Connection> it = connections.values().iterator(); it.hasNext(); ) {
+            Connection connection = it.next();
+            if (connection.references > 0) {
+                continue;
+            }
+            long idle = now - connection.idleSince;
+            if (idle >= IDLE_TIMEOUT_MS) {
+                Timber.i("Closing idle database handler:%s", connection.helper.toString());
+                connection.helper.close();
+                it.remove();
+            } else {
+                nextEviction = Math.min(nextEviction, IDLE_TIMEOUT_MS - idle);
+            }
+        }
+        if (nextEviction != Long.MAX_VALUE) {
+            scheduleEviction(nextEviction);
+        }
+    }
+
+    private void scheduleEviction(long delayMs) {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        handler.removeCallbacks(evictIdle);
+        handler.postDelayed(evictIdle, delayMs);
+    }
+
+    synchronized int size() {
+        return connections.size();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import org.odk.collect.android.exception.ExternalDataException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.com.bytecode.opencsv.CSVReader;
+import timber.log.Timber;
+
+/**
+ * Brings the database of an external data set up to date with a changed CSV by applying only the
+ * rows that were added, changed or removed, instead of importing the whole CSV again.
+ *
+ * Rows are matched by the first column whose header ends in "_key", or by the first column if
+ * there is none. The changes are only applied if the header is the same as in the database's
+ * {@link ExternalDataManifest} and the key is unique in both the database and the CSV; otherwise
+ * the data set has to be imported from scratch. All changes are made in one transaction, so the
+ * indexes stay in place and a failure leaves the previous data.
+ */
+final class ExternalDataDiffImporter {
+
+    private static final char DELIMITING_CHAR = ',';
+    private static final char QUOTE_CHAR = '"';
+    private static final char ESCAPE_CHAR = '\0';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SQLiteDatabase db;
+    private final File csvFile;
+    private final MessageDigest digest;
+
+    // the CSV column of each stored column, and their safe names
+    private final List<Integer> csvColumns = new ArrayList<Integer>();
+    private final List<String> columnNames = new ArrayList<String>();
+    // the stored column that identifies rows, and the one holding the sort values or -1
+    private int keyColumn = -1;
+    private int sortColumn = -1;
+
+    private ExternalDataDiffImporter(SQLiteDatabase db, File csvFile) {
+        this.db = db;
+        this.csvFile = csvFile;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the database is now up to date with the CSV, false if it has to be imported
+     * from scratch
+     */
+    static boolean importChanges(File dbFile, File csvFile) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            return new ExternalDataDiffImporter(db, csvFile).importChanges();
+        } catch (SQLiteException | IOException | ExternalDataException e) {
+            Timber.e(e, "Unable to apply the changes of %s", csvFile.getName());
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private boolean importChanges() throws IOException {
+        ExternalDataManifest manifest = ExternalDataManifest.read(db);
+        if (manifest == null) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(csvFile),
+                UTF_8), DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+        try {
+            String[] headerRow = reader.readNext();
+            if (headerRow == null || !manifest.hasHeader(headerRow)) {
+                Timber.i("The columns of %s have changed", csvFile.getName());
+                return false;
+            }
+            readColumns(headerRow);
+
+            Map<String, StoredRow> storedRows = readStoredRows();
+            if (storedRows == null) {
+                return false;
+            }
+
+            db.beginTransaction();
+            try {
+                int[] changes = applyChanges(reader, storedRows);
+                if (changes == null) {
+                    return false;
+                }
+                if (changes[0] + changes[1] + changes[2] > 0) {
+                    ExternalDataSearchIndex.refresh(db);
+                }
+                ExternalDataManifest.record(db, csvFile, headerRow);
+                db.setTransactionSuccessful();
+
+                Timber.i("Applied %d inserts, %d updates and %d deletes from %s in %d ms",
+                        changes[0], changes[1], changes[2], csvFile.getName(),
+                        System.currentTimeMillis() - start);
+                return true;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readColumns(String[] headerRow) {
+        int firstKeyColumn = -1;
+        for (int i = 0; i < headerRow.length; i++) {
+            String columnName = headerRow[i].trim();
+            if (columnName.length() == 0) {
+                continue;
+            }
+            String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName);
+            if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                sortColumn = columnNames.size();
+            }
+            if (firstKeyColumn == -1 && headerRow[i].endsWith("_key")) {
+                firstKeyColumn = columnNames.size();
+            }
+            csvColumns.add(i);
+            columnNames.add(safeColumnName);
+        }
+        keyColumn = firstKeyColumn == -1 ? 0 : firstKeyColumn;
+    }
+
+    private static class StoredRow {
+        final long rowId;
+        final byte[] hash;
+        boolean seen;
+
+        StoredRow(long rowId, byte[] hash) {
+            this.rowId = rowId;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @return the hashes of the rows in the database by their key, or null if the key is not
+     * unique
+     */
+    private Map<String, StoredRow> readStoredRows() {
+        StringBuilder columns = new StringBuilder("rowid");
+        for (String columnName : columnNames) {
+            columns.append(", ").append(columnName);
+        }
+        if (sortColumn == -1) {
+            columns.append(", ").append(ExternalDataUtil.SORT_COLUMN_NAME);
+        }
+
+        Map<String, StoredRow> storedRows = new HashMap<String, StoredRow>();
+        Cursor c = db.rawQuery("SELECT " + columns + " FROM "
+                + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, null);
+        try {
+            String[] values = new String[columnNames.size()];
+            int sortIndex = sortColumn == -1 ? values.length + 1 : sortColumn + 1;
+            while (c.moveToNext()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = c.getString(i + 1);
+                }
+                String key = values[keyColumn];
+                if (storedRows.put(key, new StoredRow(c.getLong(0),
+                        hash(values, c.getDouble(sortIndex)))) != null) {
+                    Timber.i("%s is not unique in the database of %s",
+                            columnNames.get(keyColumn), csvFile.getName());
+                    return null;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return storedRows;
+    }
+
+    /**
+     * @return the numbers of inserted, updated and deleted rows, or null if the key of the CSV is
+     * not unique
+     */
+    private int[] applyChanges(CSVReader reader, Map<String, StoredRow> storedRows)
+            throws IOException {
+        StringBuilder assignments = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        StringBuilder columns = new StringBuilder();
+        for (String columnName : columnNames) {
+            assignments.append(columnName).append(" = ?, ");
+            columns.append(columnName).append(", ");
+            parameters.append("?, ");
+        }
+        if (sortColumn == -1) {
+            // the generated sort values go last
+            assignments.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" = ?, ");
+            columns.append(ExternalDataUtil.SORT_COLUMN_NAME).append(", ");
+            parameters.append("?, ");
+        }
+        assignments.setLength(assignments.length() - 2);
+        columns.setLength(columns.length() - 2);
+        parameters.setLength(parameters.length() - 2);
+
+        String table = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME;
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + table + " (" + columns
+                + ") VALUES (" + parameters + ")");
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " + assignments
+                + " WHERE rowid = ?");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + table + " WHERE rowid = ?");
+        try {
+            int inserts = 0;
+            int updates = 0;
+            int rowCount = 0;
+            String[] values = new String[columnNames.size()];
+            String[] row = reader.readNext();
+            while (row != null) {
+                // SCTO-894 - empty lines are ignored, short rows are filled up with empty strings
+                if (ExternalDataUtil.containsAnyData(row)) {
+                    rowCount++;
+                    for (int i = 0; i < values.length; i++) {
+                        int csvColumn = csvColumns.get(i);
+                        values[i] = csvColumn < row.length && row[csvColumn] != null
+                                ? row[csvColumn] : "";
+                    }
+                    double sortValue = sortColumn == -1 ? rowCount
+                            : ExternalDataUtil.parseSortValue(values[sortColumn]);
+                    byte[] hash = hash(values, sortValue);
+
+                    StoredRow storedRow = storedRows.get(values[keyColumn]);
+                    if (storedRow == null) {
+                        bind(insert, values, sortValue);
+                        insert.executeInsert();
+                        inserts++;
+                    } else if (storedRow.seen) {
+                        Timber.i("%s is not unique in %s", columnNames.get(keyColumn),
+                                csvFile.getName());
+                        return null;
+                    } else {
+                        storedRow.seen = true;
+                        if (!Arrays.equals(hash, storedRow.hash)) {
+                            int rowIdParameter = bind(update, values, sortValue) + 1;
+                            update.bindLong(rowIdParameter, storedRow.rowId);
+                            update.executeUpdateDelete();
+                            updates++;
+                        }
+                    }
+                }
+                row = reader.readNext();
+            }
+
+            int deletes = 0;
+            for (StoredRow storedRow : storedRows.values()) {
+                if (!storedRow.seen) {
+                    delete.bindLong(1, storedRow.rowId);
+                    delete.executeUpdateDelete();
+                    deletes++;
+                }
+            }
+            return new int[]{inserts, updates, deletes};
+        } finally {
+            insert.close();
+            update.close();
+            delete.close();
+        }
+    }
+
+    /**
+     * @return the number of parameters bound
+     */
+    private int bind(SQLiteStatement statement, String[] values, double sortValue) {
+        statement.clearBindings();
+        for (int i = 0; i < values.length; i++) {
+            if (i == sortColumn) {
+                statement.bindDouble(i + 1, sortValue);
+            } else {
+                statement.bindString(i + 1, values[i]);
+            }
+        }
+        if (sortColumn == -1) {
+            statement.bindDouble(values.length + 1, sortValue);
+            return values.length + 1;
+        }
+        return values.length;
+    }
+
+    private byte[] hash(String[] values, double sortValue) {
+        digest.reset();
+        for (int i = 0; i < values.length; i++) {
+            // the database returns the CSV's sort values as numbers
+            if (i != sortColumn && values[i] != null) {
+                digest.update(values[i].getBytes(UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+        digest.update(Double.toString(sortValue).getBytes(UTF_8));
+        return digest.digest();
+    }
+}
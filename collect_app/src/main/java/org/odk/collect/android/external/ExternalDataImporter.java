@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Process;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.exception.ExternalDataException;
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.preferences.PreferenceKeys;
+import org.odk.collect.android.tasks.FormLoaderTask;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Imports the external data CSVs of a form's media folder into their SQLite databases.
+ *
+ * Depending on {@link PreferenceKeys#KEY_EXTERNAL_DATA_IMPORT} the CSVs are imported before the
+ * form opens, when they are first needed or when the form is downloaded. The data sets of
+ * pulldata() calls are imported before the form opens in every mode, since calculations evaluate
+ * them right away. Each CSV is imported at
+ * most once at a time: a caller that needs a data set which is being imported in the background
+ * waits for that import, and one that needs a data set whose import has not started yet imports
+ * it on its own thread.
+ *
+ * Right after a CSV is imported, its database is indexed for the lookups of the form that is
+ * loaded, see {@link ExternalDataIndexer}. The databases that were imported before are indexed on
+ * the same background thread when the form loads, and a data set counts as pending until then.
+ */
+public final class ExternalDataImporter {
+
+    public static final String IMPORT_ON_OPEN = "on_open";
+    public static final String IMPORT_LAZILY = "lazy";
+    public static final String IMPORT_ON_DOWNLOAD = "on_download";
+
+    private static final String ITEMSETS_CSV = "itemsets.csv";
+
+    private static final ExternalDataImporter INSTANCE = new ExternalDataImporter();
+
+    private final Map<String, FutureTask<Void>> imports = new HashMap<String, FutureTask<Void>>();
+    // by the absolute path of the data set in lower case, see getIndexKey
+    private final Map<String, FutureTask<Void>> indexes = new HashMap<String, FutureTask<Void>>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ExternalDataImporter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ExternalDataImporter() {
+    }
+
+    public static ExternalDataImporter getInstance() {
+        return INSTANCE;
+    }
+
+    public static String getImportMode() {
+        return (String) GeneralSharedPreferences.getInstance()
+                .get(PreferenceKeys.KEY_EXTERNAL_DATA_IMPORT);
+    }
+
+    /**
+     * @return the CSVs of the media folder that have not been imported yet. Imported CSVs are
+     * renamed to .csv.imported, and itemsets.csv is handled separately.
+     */
+    public static File[] getPendingCsvFiles(File mediaFolder) {
+        File[] csvFiles = mediaFolder == null ? null : mediaFolder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String lowerCaseName = file.getName().toLowerCase(Locale.US);
+                return lowerCaseName.endsWith(".csv") && !lowerCaseName.equals(ITEMSETS_CSV);
+            }
+        });
+        return csvFiles == null ? new File[0] : csvFiles;
+    }
+
+    /**
+     * @return the CSV of the given data set if it still has to be imported, null otherwise
+     */
+    public static File getPendingCsvFile(File mediaFolder, String dataSetName) {
+        for (File csvFile : getPendingCsvFiles(mediaFolder)) {
+            if (getDataSetName(csvFile).equalsIgnoreCase(dataSetName)) {
+                return csvFile;
+            }
+        }
+        return null;
+    }
+
+    private static String getDataSetName(File csvFile) {
+        return csvFile.getName().substring(0, csvFile.getName().lastIndexOf('.'));
+    }
+
+    /**
+     * Queues every pending CSV of the media folder for import on a background thread, except for
+     * those that are small enough to be read into memory instead. Those are only imported if their
+     * database is asked for. The databases that have been imported already are queued for
+     * indexing after the imports.
+     *
+     * @param indexer if not null, indexes the data sets for the lookups of the form
+     */
+    public void prewarm(File mediaFolder, ExternalDataIndexer indexer) {
+        int maxRows = InMemoryDataSet.getMaxRows();
+        for (File csvFile : getPendingCsvFiles(mediaFolder)) {
+            if (InMemoryDataSet.fits(csvFile, maxRows)) {
+                continue;
+            }
+            FutureTask<Void> task = getImport(csvFile, null, indexer, true);
+            if (task != null && !task.isDone()) {
+                executor.execute(task);
+            }
+        }
+
+        if (indexer != null) {
+            for (String dataSetName : indexer.getDataSets()) {
+                if (getPendingCsvFile(mediaFolder, dataSetName) == null) {
+                    executor.execute(getIndex(mediaFolder, dataSetName, indexer));
+                }
+            }
+        }
+    }
+
+    /**
+     * Imports the CSV on the calling thread, or waits for its background import to finish. An
+     * import that failed earlier is not retried until the next
+     * {@link #prewarm(File, ExternalDataIndexer)} or
+     * {@link #importAll(File, FormLoaderTask, ExternalDataIndexer)}, so the failure is reported
+     * right away.
+     *
+     * @param indexer if not null, indexes the data set for the lookups of the form
+     * @throws ExternalDataException if the import failed
+     */
+    public void importNow(File csvFile, ExternalDataIndexer indexer) {
+        run(getImport(csvFile, null, indexer, false));
+    }
+
+    /**
+     * Imports every pending CSV of the media folder, one after the other, on the calling thread.
+     * The databases that have been imported already are indexed afterwards.
+     *
+     * @param formLoaderTask if not null, receives progress and can cancel the imports
+     * @param indexer if not null, indexes the data sets for the lookups of the form
+     */
+    public void importAll(File mediaFolder, FormLoaderTask formLoaderTask,
+            ExternalDataIndexer indexer) {
+        for (File csvFile : getPendingCsvFiles(mediaFolder)) {
+            if (formLoaderTask != null && formLoaderTask.isCancelled()) {
+                return;
+            }
+            run(getImport(csvFile, formLoaderTask, indexer, true));
+        }
+
+        if (indexer != null) {
+            indexDataSets(mediaFolder, indexer.getDataSets(), formLoaderTask, indexer);
+        }
+    }
+
+    /**
+     * Imports the pending CSVs of the given data sets, one after the other, on the calling thread,
+     * except for those that are small enough to be read into memory instead. The databases of the
+     * data sets that have been imported already are indexed afterwards.
+     *
+     * @param dataSetNames the names of the data sets, in lower case
+     * @param formLoaderTask if not null, receives progress and can cancel the imports
+     * @param indexer indexes the data sets for the lookups of the form
+     */
+    public void importDataSets(File mediaFolder, Set<String> dataSetNames,
+            FormLoaderTask formLoaderTask, ExternalDataIndexer indexer) {
+        int maxRows = InMemoryDataSet.getMaxRows();
+        for (File csvFile : getPendingCsvFiles(mediaFolder)) {
+            if (formLoaderTask != null && formLoaderTask.isCancelled()) {
+                return;
+            }
+            if (dataSetNames.contains(getDataSetName(csvFile).toLowerCase(Locale.US))
+                    && !InMemoryDataSet.fits(csvFile, maxRows)) {
+                run(getImport(csvFile, formLoaderTask, indexer, true));
+            }
+        }
+
+        indexDataSets(mediaFolder, dataSetNames, formLoaderTask, indexer);
+    }
+
+    private void indexDataSets(File mediaFolder, Set<String> dataSetNames,
+            FormLoaderTask formLoaderTask, ExternalDataIndexer indexer) {
+        for (String dataSetName : dataSetNames) {
+            if (formLoaderTask != null && formLoaderTask.isCancelled()) {
+                return;
+            }
+            if (getPendingCsvFile(mediaFolder, dataSetName) == null) {
+                run(getIndex(mediaFolder, dataSetName, indexer));
+            }
+        }
+    }
+
+    /**
+     * Indexes the database of the data set on the calling thread if its indexing is queued, or
+     * waits for its indexing to finish.
+     */
+    public void awaitIndex(File mediaFolder, String dataSetName) {
+        FutureTask<Void> task;
+        synchronized (this) {
+            task = indexes.get(getIndexKey(mediaFolder, dataSetName));
+        }
+        run(task);
+    }
+
+    private static void run(FutureTask<Void> task) {
+        if (task == null) {
+            return;
+        }
+
+        // does nothing if the background thread has already started it
+        task.run();
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ExternalDataException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @return true if the data set still has to be imported or indexed, or is being imported or
+     * indexed
+     */
+    public boolean isPending(File mediaFolder, String dataSetName) {
+        synchronized (this) {
+            if (indexes.containsKey(getIndexKey(mediaFolder, dataSetName))) {
+                return true;
+            }
+        }
+        return getPendingCsvFile(mediaFolder, dataSetName) != null;
+    }
+
+    private static String getIndexKey(File mediaFolder, String dataSetName) {
+        return new File(mediaFolder, dataSetName.toLowerCase(Locale.US)).getAbsolutePath();
+    }
+
+    /**
+     * @param retry whether to replace an import that failed or was cancelled
+     * @return the import of the CSV, a new one if none is running or queued, or null if the CSV
+     * has been imported in the meantime
+     */
+    private synchronized FutureTask<Void> getImport(final File csvFile,
+            final FormLoaderTask formLoaderTask, final ExternalDataIndexer indexer,
+            boolean retry) {
+        final String path = csvFile.getAbsolutePath();
+        FutureTask<Void> task = imports.get(path);
+        if (task != null && (!task.isDone() || !retry)) {
+            return task;
+        }
+        if (!csvFile.exists()) {
+            return null;
+        }
+
+        task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                // registered before the CSV is archived, so that the data set stays pending
+                // until its database is indexed
+                FutureTask<Void> index = indexer == null ? null
+                        : getIndex(csvFile.getParentFile(), getDataSetName(csvFile), indexer);
+                try {
+                    long start = System.currentTimeMillis();
+                    new ExternalDataReaderImpl(formLoaderTask).doImport(
+                            Collections.singletonMap(getDataSetName(csvFile), csvFile));
+                    if (!csvFile.exists()) {
+                        // imported and archived
+                        Timber.i("Imported %s in %d ms", csvFile.getName(),
+                                System.currentTimeMillis() - start);
+                        synchronized (ExternalDataImporter.this) {
+                            imports.remove(path);
+                        }
+
+                        // the open form may have read the previous import
+                        ExternalDataManager externalDataManager =
+                                Collect.getInstance().getExternalDataManager();
+                        if (externalDataManager != null) {
+                            externalDataManager.onDataSetImported(
+                                    getDataSetName(csvFile).toLowerCase(Locale.US));
+                        }
+                    }
+                } finally {
+                    if (index != null) {
+                        // does nothing if another thread is indexing already
+                        index.run();
+                    }
+                }
+                return null;
+            }
+        });
+        imports.put(path, task);
+        return task;
+    }
+
+    /**
+     * @return the indexing of the data set's database, a new one if none is running or queued
+     */
+    private synchronized FutureTask<Void> getIndex(final File mediaFolder,
+            final String dataSetName, final ExternalDataIndexer indexer) {
+        final String key = getIndexKey(mediaFolder, dataSetName);
+        FutureTask<Void> task = indexes.get(key);
+        if (task != null && !task.isDone()) {
+            return task;
+        }
+
+        task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    index(mediaFolder, dataSetName.toLowerCase(Locale.US), indexer);
+                } finally {
+                    synchronized (ExternalDataImporter.this) {
+                        indexes.remove(key);
+                    }
+                }
+                return null;
+            }
+        });
+        indexes.put(key, task);
+        return task;
+    }
+
+    private static void index(File mediaFolder, String dataSetName, ExternalDataIndexer indexer) {
+        File dbFile = getDatabaseFile(mediaFolder, dataSetName);
+        if (dbFile == null) {
+            return;
+        }
+
+        ExternalSQLiteOpenHelper helper = ExternalDataConnectionPool.getInstance().acquire(dbFile);
+        try {
+            indexer.index(helper.getWritableDatabase(), dataSetName);
+        } catch (SQLiteException e) {
+            // the lookups still work, only slower
+            Timber.e(e, "Unable to index the lookup columns of %s", dataSetName);
+        } finally {
+            ExternalDataConnectionPool.getInstance().release(helper);
+        }
+    }
+
+    /**
+     * @return the imported database of the data set, or null if there is none
+     */
+    private static File getDatabaseFile(File mediaFolder, String dataSetName) {
+        File[] files = mediaFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equalsIgnoreCase(dataSetName + ".db")) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+import org.kxml2.io.KXmlParser;
+import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
+import org.odk.collect.android.external.handler.ExternalDataHandlerSearch;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Indexes the external data columns a form looks rows up by.
+ *
+ * Only columns whose header ends in "_key" are indexed on import. Here the form is read for the
+ * reference column of each pulldata() and the searched and filter columns of each search(), and
+ * {@link ExternalDataImporter} indexes those columns in the background, right after the data set
+ * is imported or when the form loads if it was imported before. The indexed columns are
+ * recorded in the data set's database so that later sessions skip them. The searched columns also
+ * get a full-text index, see {@link ExternalDataSearchIndex}.
+ */
+public final class ExternalDataIndexer {
+
+    private static final String INDEXES_TABLE = "lookup_indexes";
+    private static final String COLUMN_NAME = "column_name";
+
+    // safe column names by normalized data set name
+    private final Map<String, Set<String>> lookupColumns = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> searchedColumns = new HashMap<String, Set<String>>();
+    // normalized names of the data sets pulldata() reads from
+    private final Set<String> pulledDataSets = new HashSet<String>();
+
+    private ExternalDataIndexer() {
+    }
+
+    /**
+     * Reads the form definition for pulldata() and search() calls whose data set and columns are
+     * literal strings.
+     */
+    public static ExternalDataIndexer readForm(File formXml) {
+        ExternalDataIndexer indexer = new ExternalDataIndexer();
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(formXml));
+            KXmlParser parser = new KXmlParser();
+            parser.setInput(is, null);
+            int event = parser.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    // calculates, relevants and constraints of binds, and appearances
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        indexer.findCalls(parser.getAttributeValue(i),
+                                ExternalDataHandlerPull.HANDLER_NAME);
+                        indexer.findCalls(parser.getAttributeValue(i),
+                                ExternalDataHandlerSearch.HANDLER_NAME);
+                    }
+                }
+                event = parser.next();
+            }
+        } catch (IOException | XmlPullParserException e) {
+            Timber.e(e, "Unable to read %s for lookup columns", formXml.getName());
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return indexer;
+    }
+
+    private void findCalls(String expression, String function) {
+        int start = expression.indexOf(function + "(");
+        while (start != -1) {
+            int end = findClosingParenthesis(expression, start + function.length());
+            if (end == -1) {
+                return;
+            }
+            XPathFuncExpr call = parseCall(expression.substring(start, end + 1));
+            if (call != null && call.id.name.equals(function)) {
+                addColumns(call);
+            }
+            start = expression.indexOf(function + "(", start + 1);
+        }
+    }
+
+    /**
+     * @return the index of the parenthesis that closes the one at the given index, or -1
+     */
+    private static int findClosingParenthesis(String expression, int open) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = open; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static XPathFuncExpr parseCall(String call) {
+        try {
+            XPathExpression expression = XPathParseTool.parseXPath(call);
+            return expression instanceof XPathFuncExpr ? (XPathFuncExpr) expression : null;
+        } catch (XPathSyntaxException e) {
+            return null;
+        }
+    }
+
+    private void addColumns(XPathFuncExpr call) {
+        String dataSetName = getLiteral(call, 0);
+        if (dataSetName == null) {
+            return;
+        }
+        dataSetName = dataSetName.toLowerCase(Locale.US);
+        if (dataSetName.endsWith(".csv")) {
+            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
+        }
+
+        if (call.id.name.equals(ExternalDataHandlerPull.HANDLER_NAME)) {
+            // pulldata(dataSet, queriedColumn, referenceColumn, referenceValue)
+            pulledDataSets.add(dataSetName);
+            addColumns(getLiteral(call, 2), getColumns(lookupColumns, dataSetName));
+        } else {
+            // search(dataSet, searchType, searchedColumns, searchedValue, filterColumn,
+            // filterValue)
+            addColumns(getLiteral(call, 2), getColumns(lookupColumns, dataSetName));
+            addColumns(getLiteral(call, 2), getColumns(searchedColumns, dataSetName));
+            addColumns(getLiteral(call, 4), getColumns(lookupColumns, dataSetName));
+        }
+    }
+
+    /**
+     * @return the lower case names of the data sets that pulldata() calls read from
+     */
+    public Set<String> getPulledDataSets() {
+        return pulledDataSets;
+    }
+
+    /**
+     * @return the lower case names of the data sets that the form looks rows up in
+     */
+    public Set<String> getDataSets() {
+        return lookupColumns.keySet();
+    }
+
+    private static Set<String> getColumns(Map<String, Set<String>> columnsByDataSet,
+            String dataSetName) {
+        Set<String> columns = columnsByDataSet.get(dataSetName);
+        if (columns == null) {
+            columns = new HashSet<String>();
+            columnsByDataSet.put(dataSetName, columns);
+        }
+        return columns;
+    }
+
+    private static void addColumns(String columnList, Set<String> columns) {
+        if (columnList != null && columnList.trim().length() > 0) {
+            columns.addAll(ExternalDataUtil.createListOfColumns(columnList));
+        }
+    }
+
+    private static String getLiteral(XPathFuncExpr call, int arg) {
+        if (call.args.length > arg && call.args[arg] instanceof XPathStringLiteral) {
+            return ((XPathStringLiteral) call.args[arg]).s;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the indexes the form's lookups in the data set need, unless they have been created
+     * before, and warns about lookups that still scan the whole table.
+     */
+    public void index(SQLiteDatabase db, String dataSetName) {
+        Set<String> columns = lookupColumns.get(dataSetName);
+        if (columns == null || columns.isEmpty()) {
+            return;
+        }
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + INDEXES_TABLE + " (" + COLUMN_NAME
+                + " text primary key)");
+        Set<String> indexed = getStrings(db.rawQuery("SELECT " + COLUMN_NAME + " FROM "
+                + INDEXES_TABLE, null), 0);
+        Set<String> tableColumns = getStrings(db.rawQuery("PRAGMA table_info("
+                + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + ")", null), 1);
+
+        for (String column : columns) {
+            if (!tableColumns.contains(column)) {
+                Timber.w("%s has no column %s to look up by", dataSetName, column);
+                continue;
+            }
+            if (indexed.contains(column)) {
+                continue;
+            }
+
+            long start = System.currentTimeMillis();
+            if (scansTable(db, column)) {
+                // the columns are declared with this collation already, but the lookups rely on
+                // it to use the index, so it is spelled out
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + column + "_lookup_idx ON "
+                        + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " (" + column
+                        + " COLLATE NOCASE)");
+                Timber.i("Indexed %s.%s in %d ms", dataSetName, column,
+                        System.currentTimeMillis() - start);
+            }
+            db.execSQL("INSERT OR IGNORE INTO " + INDEXES_TABLE + " VALUES (?)",
+                    new Object[]{column});
+
+            if (scansTable(db, column)) {
+                Timber.w("Lookups in %s by %s still scan the whole table", dataSetName, column);
+            }
+        }
+
+        Set<String> searched = searchedColumns.get(dataSetName);
+        if (searched != null && ExternalDataSearchIndex.isEnabled()) {
+            searched = new HashSet<String>(searched);
+            searched.retainAll(tableColumns);
+            if (!searched.isEmpty()) {
+                ExternalDataSearchIndex.build(db, dataSetName, searched);
+            }
+        }
+    }
+
+    /**
+     * @return true if SQLite plans to read every row to find the rows with a given value in the
+     * column
+     */
+    static boolean scansTable(SQLiteDatabase db, String column) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM "
+                + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " WHERE " + column + " = ?",
+                new String[]{""});
+        try {
+            int detail = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                String plan = c.getString(detail);
+                if (plan != null && plan.startsWith("SCAN")) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Set<String> getStrings(Cursor c, int column) {
+        Set<String> strings = new HashSet<String>();
+        try {
+            while (c.moveToNext()) {
+                strings.add(c.getString(column));
+            }
+        } finally {
+            c.close();
+        }
+        return strings;
+    }
+}
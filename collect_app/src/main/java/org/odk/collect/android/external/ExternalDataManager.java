@@ -39,5 +39,34 @@ public interface ExternalDataManager {
      */
     ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required);
 
+    /**
+     * @param dataSetName the name of the .csv
+     * @return the data set held in memory, or null if it has too many rows to be, in which case
+     * {@link #getDatabase(String, boolean)} has to be used
+     */
+    InMemoryDataSet getInMemoryDataSet(String dataSetName);
+
+    /**
+     * @param dataSetName the name of the .csv
+     * @return false if the .csv still has to be imported, in which case
+     * {@link #getDatabase(String, boolean)} will block until it is
+     */
+    boolean isReady(String dataSetName);
+
+    /**
+     * @return the cache of pulldata() results for the form that is open
+     */
+    PullDataCache getPullDataCache();
+
+    /**
+     * Releases the database of a data set and forgets its cached results, because its .csv has
+     * been imported again.
+     */
+    void onDataSetImported(String dataSetName);
+
+    /**
+     * Releases the databases of the form to the {@link ExternalDataConnectionPool} and forgets
+     * the cached results. They are acquired again if the form is still used.
+     */
     void close();
 }
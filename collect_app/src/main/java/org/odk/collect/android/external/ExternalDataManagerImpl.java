@@ -35,18 +35,41 @@ import timber.log.Timber;
  */
 public class ExternalDataManagerImpl implements ExternalDataManager {
 
-    private Map<String, ExternalSQLiteOpenHelper> dbMap =
+    private final Map<String, ExternalSQLiteOpenHelper> dbMap =
             new HashMap<String, ExternalSQLiteOpenHelper>();
 
+    // null for the data sets that are too large to be held in memory
+    private final Map<String, InMemoryDataSet> memoryMap = new HashMap<String, InMemoryDataSet>();
+
+    private final PullDataCache pullDataCache = new PullDataCache();
+
     private final File mediaFolder;
 
+    private final ExternalDataIndexer indexer;
+
     public ExternalDataManagerImpl(File mediaFolder) {
+        this(mediaFolder, null);
+    }
+
+    /**
+     * @param indexer indexes the data sets that are imported when the form needs them, or null
+     */
+    public ExternalDataManagerImpl(File mediaFolder, ExternalDataIndexer indexer) {
         this.mediaFolder = mediaFolder;
+        this.indexer = indexer;
     }
 
+    /**
+     * Imports the data set first if its .csv has not been imported yet, or waits for its
+     * background import and indexing to finish. A database shipped with the form without its
+     * .csv is used as it is if its layout is one this version reads.
+     */
     @Override
     public ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required) {
-        ExternalSQLiteOpenHelper sqLiteOpenHelper = dbMap.get(dataSetName);
+        ExternalSQLiteOpenHelper sqLiteOpenHelper;
+        synchronized (dbMap) {
+            sqLiteOpenHelper = dbMap.get(dataSetName);
+        }
         if (sqLiteOpenHelper == null) {
             if (mediaFolder == null) {
                 String msg = Collect.getInstance().getString(R.string.ext_not_initialized_error);
@@ -57,6 +80,22 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
                     return null;
                 }
             } else {
+                File csvFile = ExternalDataImporter.getPendingCsvFile(mediaFolder, dataSetName);
+                if (csvFile != null) {
+                    Timber.i("%s is needed, importing it now", csvFile.getName());
+                    try {
+                        ExternalDataImporter.getInstance().importNow(csvFile, indexer);
+                    } catch (ExternalDataException e) {
+                        Timber.e(e);
+                        if (required) {
+                            throw e;
+                        } else {
+                            return null;
+                        }
+                    }
+                }
+                ExternalDataImporter.getInstance().awaitIndex(mediaFolder, dataSetName);
+
                 File dbFile = new File(mediaFolder, dataSetName + ".db");
                 if (!dbFile.exists()) {
                     String msg = Collect.getInstance().getString(
@@ -67,22 +106,121 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
                     } else {
                         return null;
                     }
+                } else if (csvFile == null && !ExternalDataManifest.isCompatible(dbFile)) {
+                    // a database that was shipped with the form without its .csv
+                    String msg = Collect.getInstance().getString(
+                            R.string.ext_import_db_incompatible_error, dataSetName, dataSetName);
+                    Timber.e(msg);
+                    if (required) {
+                        throw new ExternalDataException(msg);
+                    } else {
+                        return null;
+                    }
                 } else {
-                    sqLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
-                    dbMap.put(dataSetName, sqLiteOpenHelper);
+                    synchronized (dbMap) {
+                        sqLiteOpenHelper = dbMap.get(dataSetName);
+                        if (sqLiteOpenHelper == null) {
+                            sqLiteOpenHelper = ExternalDataConnectionPool.getInstance()
+                                    .acquire(dbFile);
+                            dbMap.put(dataSetName, sqLiteOpenHelper);
+                        }
+                    }
                 }
             }
         }
         return sqLiteOpenHelper;
     }
 
+    /**
+     * Reads the data set's .csv into memory when it is first needed, whether or not the .csv has
+     * been imported.
+     */
+    @Override
+    public InMemoryDataSet getInMemoryDataSet(String dataSetName) {
+        synchronized (memoryMap) {
+            if (memoryMap.containsKey(dataSetName)) {
+                return memoryMap.get(dataSetName);
+            }
+
+            InMemoryDataSet dataSet = null;
+            File csvFile = mediaFolder == null ? null : getCsvFile(dataSetName);
+            if (csvFile != null) {
+                long start = System.currentTimeMillis();
+                try {
+                    dataSet = InMemoryDataSet.load(csvFile, InMemoryDataSet.getMaxRows());
+                } catch (ExternalDataException e) {
+                    // the import reports it
+                    Timber.e(e);
+                }
+                if (dataSet != null) {
+                    Timber.i("Read %d rows of %s into memory in %d ms", dataSet.getRowCount(),
+                            csvFile.getName(), System.currentTimeMillis() - start);
+                }
+            }
+            memoryMap.put(dataSetName, dataSet);
+            return dataSet;
+        }
+    }
+
+    /**
+     * @return the .csv of the data set, the imported one if it has not changed since
+     */
+    private File getCsvFile(String dataSetName) {
+        File csvFile = ExternalDataImporter.getPendingCsvFile(mediaFolder, dataSetName);
+        if (csvFile != null) {
+            return csvFile;
+        }
+        File[] files = mediaFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equalsIgnoreCase(dataSetName + ".csv.imported")) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isReady(String dataSetName) {
+        return mediaFolder == null
+                || !ExternalDataImporter.getInstance().isPending(mediaFolder, dataSetName)
+                || getInMemoryDataSet(dataSetName) != null;
+    }
+
+    @Override
+    public PullDataCache getPullDataCache() {
+        return pullDataCache;
+    }
+
+    @Override
+    public void onDataSetImported(String dataSetName) {
+        pullDataCache.invalidate(dataSetName);
+        synchronized (memoryMap) {
+            memoryMap.remove(dataSetName);
+        }
+        ExternalSQLiteOpenHelper sqLiteOpenHelper;
+        synchronized (dbMap) {
+            sqLiteOpenHelper = dbMap.remove(dataSetName);
+        }
+        if (sqLiteOpenHelper != null) {
+            ExternalDataConnectionPool.getInstance().release(sqLiteOpenHelper);
+        }
+    }
+
     @Override
     public void close() {
-        if (dbMap != null) {
+        pullDataCache.clear();
+        synchronized (memoryMap) {
+            memoryMap.clear();
+        }
+        // the databases stay open in the pool for a while, in case the form or another one
+        // needs them again
+        synchronized (dbMap) {
             for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
-                Timber.w("Closing database handler:%s", externalSQLiteOpenHelper.toString());
-                externalSQLiteOpenHelper.close();
+                ExternalDataConnectionPool.getInstance().release(externalSQLiteOpenHelper);
             }
+            dbMap.clear();
         }
     }
 }
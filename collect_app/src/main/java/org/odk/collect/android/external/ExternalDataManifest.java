@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
+
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.File;
+
+import timber.log.Timber;
+
+/**
+ * The record of the CSV an external data set's database was built from.
+ *
+ * Every database records the MD5 of its CSV and the CSV's header in an import_source table, and
+ * the version of its layout in user_version. A database that is shipped with the form, e.g. built
+ * on a server by the external data builder, is used as it is when its record matches the CSV next
+ * to it, so the CSV does not have to be imported on every device.
+ */
+public final class ExternalDataManifest {
+
+    /**
+     * The version of the layout of the databases, which {@link ExternalSQLiteOpenHelper} stores in
+     * user_version.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final String TABLE = "import_source";
+    private static final String MD5 = "md5";
+    private static final String HEADER = "header";
+
+    private final String md5;
+    private final String header;
+
+    private ExternalDataManifest(String md5, String header) {
+        this.md5 = md5;
+        this.header = header;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public boolean hasHeader(String[] headerRow) {
+        return joinHeader(headerRow).equals(header);
+    }
+
+    /**
+     * Records the CSV a database has been built from.
+     */
+    static void record(SQLiteDatabase db, File csvFile, String[] headerRow) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (" + MD5 + " text, " + HEADER
+                + " text)");
+        db.delete(TABLE, null, null);
+        db.execSQL("INSERT INTO " + TABLE + " VALUES (?, ?)",
+                new Object[]{FileUtils.getMd5Hash(csvFile), joinHeader(headerRow)});
+    }
+
+    /**
+     * @return the record of the database, or null if it has none or its layout is not the one this
+     * version reads
+     */
+    static ExternalDataManifest read(SQLiteDatabase db) {
+        if (db.getVersion() != SCHEMA_VERSION || !hasTable(db, TABLE)
+                || !hasTable(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME)) {
+            return null;
+        }
+        Cursor c = db.rawQuery("SELECT " + MD5 + ", " + HEADER + " FROM " + TABLE, null);
+        try {
+            return c.moveToFirst() ? new ExternalDataManifest(c.getString(0), c.getString(1))
+                    : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return true if the database has been built from the CSV as it is now, with the layout this
+     * version reads
+     */
+    public static boolean matches(File dbFile, File csvFile) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            ExternalDataManifest manifest = read(db);
+            return manifest != null && manifest.getMd5() != null
+                    && manifest.getMd5().equals(FileUtils.getMd5Hash(csvFile));
+        } catch (SQLiteException e) {
+            Timber.e(e, "Unable to read the record of %s", dbFile.getName());
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the database has a layout this version reads. Databases built before the
+     * CSV was recorded have the same layout.
+     */
+    public static boolean isCompatible(File dbFile) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            return db.getVersion() == SCHEMA_VERSION
+                    && hasTable(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+        } catch (SQLiteException e) {
+            Timber.e(e, "Unable to open %s", dbFile.getName());
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table});
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String joinHeader(String[] headerRow) {
+        return TextUtils.join("\n", headerRow);
+    }
+}
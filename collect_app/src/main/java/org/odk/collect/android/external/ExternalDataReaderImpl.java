@@ -38,6 +38,10 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
 
     private FormLoaderTask formLoaderTask;
 
+    /**
+     * @param formLoaderTask the task to report progress to and that can cancel the import, or
+     *                       null when importing in the background
+     */
     public ExternalDataReaderImpl(FormLoaderTask formLoaderTask) {
         this.formLoaderTask = formLoaderTask;
     }
@@ -50,8 +54,21 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(),
                         dataSetName + ".db");
+                // a form may have left the previous database open
+                ExternalDataConnectionPool.getInstance().evict(dbFile);
+                if (dbFile.exists() && ExternalDataManifest.matches(dbFile, dataSetFile)) {
+                    // the database was built from this csv, e.g. shipped pre-built with the form
+                    Timber.i("%s is up to date with %s", dbFile.getName(), dataSetFile.getName());
+                    archive(dataSetFile);
+                    continue;
+                }
                 if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
+                    // this means the someone updated the csv file, so we need to reload it.
+                    // Usually only some rows have changed, and only those are applied.
+                    if (ExternalDataDiffImporter.importChanges(dbFile, dataSetFile)) {
+                        archive(dataSetFile);
+                        continue;
+                    }
                     boolean deleted = dbFile.delete();
                     if (!deleted) {
                         Timber.e("%s has changed but we could not delete the previous DB at %s",
@@ -63,7 +80,7 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
                         dbFile);
                 externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
 
-                if (formLoaderTask.isCancelled()) {
+                if (formLoaderTask != null && formLoaderTask.isCancelled()) {
                     Timber.w(
                             "The import was cancelled, so we need to rollback.");
 
@@ -88,20 +105,24 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
                     return;
 
                 } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
-                    // loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(),
-                            dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Timber.e("%s could not be renamed to be archived. It will be re-imported "
-                                + "again! :(", dataSetFile.getName());
-                    } else {
-                        Timber.e("%s was renamed to %s", dataSetFile.getName(), importedFile.getName());
-                    }
+                    archive(dataSetFile);
                 }
             }
         }
     }
 
+    private static void archive(File dataSetFile) {
+        // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
+        // loaded again
+        File importedFile = new File(dataSetFile.getParentFile(),
+                dataSetFile.getName() + ".imported");
+        boolean renamed = dataSetFile.renameTo(importedFile);
+        if (!renamed) {
+            Timber.e("%s could not be renamed to be archived. It will be re-imported "
+                    + "again! :(", dataSetFile.getName());
+        } else {
+            Timber.e("%s was renamed to %s", dataSetFile.getName(), importedFile.getName());
+        }
+    }
+
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.preferences.PreferenceKeys;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * A full-text index over the columns that search() appearances look through.
+ *
+ * The index is an FTS4 table that reads its content from the data set's table, so it only holds
+ * the tokens. SQLite's simple tokenizer splits values at ASCII characters other than letters and
+ * digits and ignores the case of ASCII letters, which is also what LIKE ignores. A phrase query
+ * for the tokens of a value therefore finds every row that LIKE would find for "matches" and, with
+ * a prefix on the last token, for "startsWith". It can find more than that, so the LIKE still has
+ * to be applied to the rows it finds.
+ */
+public final class ExternalDataSearchIndex {
+
+    public static final String TABLE_NAME = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + "_search";
+    private static final String COLUMNS_TABLE = "search_index_columns";
+    private static final String COLUMN_NAME = "column_name";
+
+    private ExternalDataSearchIndex() {
+    }
+
+    public static boolean isEnabled() {
+        return (Boolean) GeneralSharedPreferences.getInstance()
+                .get(PreferenceKeys.KEY_EXTERNAL_DATA_SEARCH_INDEX);
+    }
+
+    /**
+     * Builds the index over the given columns, together with any columns it already covers,
+     * unless it covers all of them already.
+     *
+     * @param columns safe column names
+     */
+    static void build(SQLiteDatabase db, String dataSetName, Set<String> columns) {
+        Set<String> indexedColumns = getColumns(db);
+        if (indexedColumns.containsAll(columns)) {
+            return;
+        }
+        List<String> allColumns = new ArrayList<String>(indexedColumns);
+        for (String column : columns) {
+            if (!indexedColumns.contains(column)) {
+                allColumns.add(column);
+            }
+        }
+        Collections.sort(allColumns);
+
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(content=\""
+                    + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + "\", "
+                    + TextUtils.join(", ", allColumns) + ")");
+            db.execSQL("INSERT INTO " + TABLE_NAME + " (" + TABLE_NAME + ") VALUES ('rebuild')");
+
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + COLUMNS_TABLE + " (" + COLUMN_NAME
+                    + " text primary key)");
+            db.delete(COLUMNS_TABLE, null, null);
+            for (String column : allColumns) {
+                db.execSQL("INSERT INTO " + COLUMNS_TABLE + " VALUES (?)", new Object[]{column});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Timber.i("Built the search index of %s over %s in %d ms", dataSetName, allColumns,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Indexes the data set's rows again after they have been changed, if there is an index.
+     */
+    static void refresh(SQLiteDatabase db) {
+        if (!getColumns(db).isEmpty()) {
+            db.execSQL("INSERT INTO " + TABLE_NAME + " (" + TABLE_NAME + ") VALUES ('rebuild')");
+        }
+    }
+
+    /**
+     * @return the safe names of the columns the index covers, which are none if there is no index
+     */
+    public static Set<String> getColumns(SQLiteDatabase db) {
+        Set<String> columns = new HashSet<String>();
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{COLUMNS_TABLE});
+        try {
+            if (!c.moveToFirst()) {
+                return columns;
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery("SELECT " + COLUMN_NAME + " FROM " + COLUMNS_TABLE, null);
+        try {
+            while (c.moveToNext()) {
+                columns.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Builds the full-text query for the rows whose columns may contain the value.
+     *
+     * @param prefix whether the last token of the value may be the start of a longer token
+     * @return the query, or null if the index can't narrow the rows down, e.g. because the value
+     * has LIKE wildcards or no tokens
+     */
+    public static String toMatchQuery(List<String> columns, String value, boolean prefix) {
+        if (value.indexOf('%') != -1 || value.indexOf('_') != -1) {
+            return null;
+        }
+        List<String> tokens = tokenize(value);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+
+        String phrase = "\"" + TextUtils.join(" ", tokens) + (prefix ? "*\"" : "\"");
+        StringBuilder query = new StringBuilder();
+        for (String column : columns) {
+            if (query.length() > 0) {
+                query.append(" OR ");
+            }
+            query.append(column).append(':').append(phrase);
+        }
+        return query.toString();
+    }
+
+    /**
+     * Splits the value the way the simple tokenizer does, which also folds the case of ASCII
+     * letters only.
+     */
+    static List<String> tokenize(String value) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                token.append((char) (c + ('a' - 'A')));
+            } else if (c >= 128 || Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+}
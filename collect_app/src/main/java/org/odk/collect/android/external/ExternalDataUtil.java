@@ -26,6 +26,7 @@ import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
@@ -137,6 +138,29 @@ public final class ExternalDataUtil {
         }
     }
 
+    /**
+     * @return the normalized name of the data set a search() appearance reads from, or null if
+     * the appearance has no search() with a literal data set name
+     */
+    public static String getSearchDataSetName(String appearance) {
+        XPathFuncExpr xpathFuncExpr;
+        try {
+            xpathFuncExpr = getSearchXPathExpression(appearance);
+        } catch (InvalidSyntaxException e) {
+            // reported by the widget
+            return null;
+        }
+        if (xpathFuncExpr == null || !(xpathFuncExpr.args[0] instanceof XPathStringLiteral)) {
+            return null;
+        }
+
+        String dataSetName = ((XPathStringLiteral) xpathFuncExpr.args[0]).s.toLowerCase(Locale.US);
+        if (dataSetName.endsWith(".csv")) {
+            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
+        }
+        return dataSetName;
+    }
+
     public static ArrayList<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt,
             XPathFuncExpr xpathfuncexpr) {
         try {
@@ -290,6 +314,18 @@ public final class ExternalDataUtil {
         return fullRow;
     }
 
+    /**
+     * @throws ExternalDataException if the value of the sort column is not a number
+     */
+    public static double parseSortValue(String value) {
+        try {
+            return Double.parseDouble(value == null ? "" : value);
+        } catch (NumberFormatException e) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, value));
+        }
+    }
+
     public static String nullSafe(String value) {
         return value == null ? "" : value;
     }
@@ -18,7 +18,6 @@
 
 package org.odk.collect.android.external;
 
-import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
 
 import org.odk.collect.android.R;
@@ -47,17 +46,21 @@ import au.com.bytecode.opencsv.CSVReader;
  */
 public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
 
-    private static final int VERSION = 1;
+    private static final int VERSION = ExternalDataManifest.SCHEMA_VERSION;
     private static final char DELIMITING_CHAR = ",".charAt(0);
     private static final char QUOTE_CHAR = "\"".charAt(0);
     private static final char ESCAPE_CHAR = "\0".charAt(0);
 
+    private final File dbFile;
     private File dataSetFile;
     private ExternalDataReader externalDataReader;
     private FormLoaderTask formLoaderTask;
+    private String[] headerRow;
+    private List<String> createIndexesCommands;
 
     public ExternalSQLiteOpenHelper(File dbFile) {
         super(dbFile.getParentFile().getAbsolutePath(), dbFile.getName(), null, VERSION);
+        this.dbFile = dbFile;
     }
 
     public void importFromCSV(File dataSetFile, ExternalDataReader externalDataReader,
@@ -67,12 +70,21 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         this.formLoaderTask = formLoaderTask;
 
         SQLiteDatabase writableDatabase = null;
+        boolean success = false;
         try {
+            // creates the table, see onCreate
             writableDatabase = getWritableDatabase();
+            if (headerRow != null) {
+                populate(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            }
+            success = true;
         } finally {
             if (writableDatabase != null) {
                 writableDatabase.close();
             }
+            if (!success && dbFile.exists() && !dbFile.delete()) {
+                Timber.e("Could not delete the partially imported %s", dbFile.getName());
+            }
         }
     }
 
@@ -96,6 +108,11 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         }
     }
 
+    /**
+     * Creates the table from the header row. The rows are inserted by
+     * {@link #populate(SQLiteDatabase, String)} once the database is open, outside of the
+     * transaction this runs in, so that they can be committed in batches.
+     */
     private void onCreateNamed(SQLiteDatabase db, String tableName) throws Exception {
         Timber.w("Reading data from '%s", dataSetFile.toString());
 
@@ -104,8 +121,7 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
 
         CSVReader reader = null;
         try {
-            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"),
-                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            reader = openReader();
             String[] headerRow = reader.readNext();
 
             if (!ExternalDataUtil.containsAnyData(headerRow)) {
@@ -165,7 +181,7 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
             // create the indexes.
             // save the sql for later because inserts will be much faster if we don't have
             // indexes already.
-            List<String> createIndexesCommands = new ArrayList<String>();
+            createIndexesCommands = new ArrayList<String>();
             for (String header : headerRow) {
                 if (header.endsWith("_key")) {
                     String indexSQL = "CREATE INDEX " + header + "_idx ON " + tableName + " ("
@@ -175,58 +191,37 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                 }
             }
 
-            // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
-                    continue;
-                }
-
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
-                }
+            this.headerRow = headerRow;
+        } finally {
+            closeReader(reader);
+        }
+    }
 
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
-                }
+    private void populate(SQLiteDatabase db, String tableName) {
+        CSVReader reader = null;
+        try {
+            reader = openReader();
+            // the header row has been read by onCreateNamed
+            reader.readNext();
+
+            long start = System.currentTimeMillis();
+            int rowCount = new ExternalDataBulkInserter(db, tableName, headerRow).insertAll(reader,
+                    new ExternalDataBulkInserter.Listener() {
+                        @Override
+                        public boolean isCancelled() {
+                            return ExternalSQLiteOpenHelper.this.isCancelled();
+                        }
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
-                        continue;
-                    }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
-                            columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(
-                                    R.string.ext_sortBy_numeric_error, columnValue));
+                        @Override
+                        public void onProgress(int rowCount) {
+                            ExternalSQLiteOpenHelper.this.onProgress(Collect.getInstance()
+                                    .getString(R.string.ext_import_progress_message,
+                                            dataSetFile.getName(),
+                                            " (" + rowCount + " records so far)"));
                         }
-                    } else {
-                        values.put(safeColumnName, columnValue);
-                    }
-                }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
-                            dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
-            }
+                    });
 
-            if (formLoaderTask.isCancelled()) {
+            if (isCancelled()) {
                 Timber.w("User canceled reading data from %s", dataSetFile.toString());
                 onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
             } else {
@@ -238,17 +233,34 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                     Timber.w(createIndexCommand);
                     db.execSQL(createIndexCommand);
                 }
+                ExternalDataManifest.record(db, dataSetFile, headerRow);
 
-                Timber.w("Read all data from %s", dataSetFile.toString());
+                Timber.w("Read %d rows from %s in %d ms", rowCount, dataSetFile.toString(),
+                        System.currentTimeMillis() - start);
                 onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
             }
+        } catch (ExternalDataException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_import_generic_error,
+                            dataSetFile.getName(), e.getMessage()), e);
         } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Timber.e(e);
-                }
+            closeReader(reader);
+        }
+    }
+
+    private CSVReader openReader() throws IOException {
+        return new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"),
+                DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+    }
+
+    private static void closeReader(CSVReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Timber.e(e);
             }
         }
     }
@@ -257,6 +269,10 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
 
+    private boolean isCancelled() {
+        return formLoaderTask != null && formLoaderTask.isCancelled();
+    }
+
     private void onProgress(String message) {
         if (formLoaderTask != null) {
             formLoaderTask.publishExternalDataLoadingProgress(message);
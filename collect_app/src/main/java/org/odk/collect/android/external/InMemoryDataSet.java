@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.exception.ExternalDataException;
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.preferences.PreferenceKeys;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.com.bytecode.opencsv.CSVReader;
+import timber.log.Timber;
+
+/**
+ * An external data set that is small enough to be held in memory instead of in a SQLite database.
+ *
+ * The values are stored column by column, with equal values sharing one string. Lookups by the
+ * value of a column go through a hash index of that column, which is built when the column is
+ * first looked up by. The rows, the column names and the comparisons are those of the table that
+ * {@link ExternalSQLiteOpenHelper} would create, so that both answer every query the same way:
+ * values are compared ignoring the case of ASCII letters, like the "nocase" collation does.
+ */
+public final class InMemoryDataSet {
+
+    private static final char DELIMITING_CHAR = ',';
+    private static final char QUOTE_CHAR = '"';
+    private static final char ESCAPE_CHAR = '\0';
+    private static final int[] NO_ROWS = new int[0];
+
+    private final Map<String, Integer> columnIndexes;
+    // the values of each column, by row
+    private final String[][] values;
+    // the rows ordered by the sort column, and the position of each row in that order
+    private final int[] sortedRows;
+    private final int[] sortPositions;
+    // the rows by their case-folded value, for each column looked up by so far
+    private final Map<Integer, Map<String, int[]>> lookupIndexes =
+            new HashMap<Integer, Map<String, int[]>>();
+
+    private InMemoryDataSet(Map<String, Integer> columnIndexes, String[][] values,
+            int[] sortedRows) {
+        this.columnIndexes = columnIndexes;
+        this.values = values;
+        this.sortedRows = sortedRows;
+        sortPositions = new int[sortedRows.length];
+        for (int i = 0; i < sortedRows.length; i++) {
+            sortPositions[sortedRows[i]] = i;
+        }
+    }
+
+    /**
+     * @return the largest number of rows a data set may have to be held in memory, 0 if none may
+     */
+    public static int getMaxRows() {
+        return Integer.parseInt((String) GeneralSharedPreferences.getInstance()
+                .get(PreferenceKeys.KEY_EXTERNAL_DATA_MEMORY_ROWS));
+    }
+
+    /**
+     * @return whether the CSV has few enough lines to be held in memory. This only reads up to the
+     * limit, and counts lines rather than rows, so a row with line breaks may make a CSV that
+     * would fit look too large.
+     */
+    public static boolean fits(File csvFile, int maxRows) {
+        if (maxRows <= 0) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile),
+                    "UTF-8"));
+            // the header is not a row
+            for (int lines = 0; lines <= maxRows + 1; lines++) {
+                if (reader.readLine() == null) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            Timber.e(e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the CSV into memory.
+     *
+     * @return the data set, or null if the CSV has more than the given number of rows or can't be
+     * read
+     * @throws ExternalDataException if the CSV is not a valid data set
+     */
+    public static InMemoryDataSet load(File csvFile, int maxRows) {
+        CSVReader reader = null;
+        try {
+            reader = new CSVReader(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"),
+                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            String[] headerRow = reader.readNext();
+            if (!ExternalDataUtil.containsAnyData(headerRow)) {
+                throw new ExternalDataException(
+                        Collect.getInstance().getString(R.string.ext_file_no_data_error));
+            }
+            List<String> conflictingColumns =
+                    ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
+            if (conflictingColumns != null && conflictingColumns.size() > 0) {
+                throw new ExternalDataException(
+                        Collect.getInstance().getString(R.string.ext_conflicting_columns_error,
+                                conflictingColumns));
+            }
+
+            List<String[]> rows = new ArrayList<String[]>();
+            Map<String, String> strings = new HashMap<String, String>();
+            String[] row = reader.readNext();
+            while (row != null) {
+                // SCTO-894 - empty lines are ignored
+                if (ExternalDataUtil.containsAnyData(row)) {
+                    if (rows.size() == maxRows) {
+                        return null;
+                    }
+                    // SCTO-894 - a row with fewer values than the header is filled up
+                    String[] fullRow = ExternalDataUtil.fillUpNullValues(row, headerRow);
+                    for (int i = 0; i < fullRow.length; i++) {
+                        fullRow[i] = intern(fullRow[i], strings);
+                    }
+                    rows.add(fullRow);
+                }
+                row = reader.readNext();
+            }
+            return create(headerRow, rows);
+        } catch (IOException e) {
+            Timber.e(e, "Unable to read %s into memory", csvFile.getName());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
+        }
+    }
+
+    private static String intern(String value, Map<String, String> strings) {
+        String interned = strings.get(value);
+        if (interned == null) {
+            strings.put(value, value);
+            return value;
+        }
+        return interned;
+    }
+
+    private static InMemoryDataSet create(String[] headerRow, List<String[]> rows) {
+        Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        List<String[]> values = new ArrayList<String[]>();
+        int sortColumn = -1;
+        for (int i = 0; i < headerRow.length; i++) {
+            if (headerRow[i].trim().length() == 0) {
+                continue;
+            }
+            String safeColumnName = ExternalDataUtil.toSafeColumnName(headerRow[i]);
+            if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                sortColumn = i;
+            }
+            String[] column = new String[rows.size()];
+            for (int row = 0; row < column.length; row++) {
+                column[row] = rows.get(row)[i];
+            }
+            columnIndexes.put(safeColumnName, values.size());
+            values.add(column);
+        }
+
+        final double[] sortValues = new double[rows.size()];
+        Integer[] sortedRows = new Integer[rows.size()];
+        for (int row = 0; row < sortValues.length; row++) {
+            sortedRows[row] = row;
+            if (sortColumn == -1) {
+                sortValues[row] = row + 1;
+            } else {
+                sortValues[row] = ExternalDataUtil.parseSortValue(rows.get(row)[sortColumn]);
+            }
+        }
+        // stable, so rows with the same sort value stay in the order of the CSV
+        Arrays.sort(sortedRows, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(sortValues[lhs], sortValues[rhs]);
+            }
+        });
+        int[] order = new int[sortedRows.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = sortedRows[i];
+        }
+
+        return new InMemoryDataSet(columnIndexes, values.toArray(new String[values.size()][]),
+                order);
+    }
+
+    public int getRowCount() {
+        return sortedRows.length;
+    }
+
+    /**
+     * @param columnName safe column name
+     * @return the index of the column, or -1 if the data set has no such column
+     */
+    public int getColumn(String columnName) {
+        Integer column = columnIndexes.get(columnName);
+        return column == null ? -1 : column;
+    }
+
+    public String getValue(int column, int row) {
+        return values[column][row];
+    }
+
+    /**
+     * @return the rows ordered by the sort column
+     */
+    public int[] getSortedRows() {
+        return sortedRows;
+    }
+
+    /**
+     * @return the given rows ordered by the sort column
+     */
+    public int[] sort(int[] rows) {
+        int[] positions = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            positions[i] = sortPositions[rows[i]];
+        }
+        Arrays.sort(positions);
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < positions.length; i++) {
+            sorted[i] = sortedRows[positions[i]];
+        }
+        return sorted;
+    }
+
+    /**
+     * @return the rows whose column has the value, in the order of the CSV
+     */
+    public synchronized int[] getRows(int column, String value) {
+        Map<String, int[]> index = lookupIndexes.get(column);
+        if (index == null) {
+            index = createIndex(values[column]);
+            lookupIndexes.put(column, index);
+        }
+        int[] rows = index.get(foldCase(value));
+        return rows == null ? NO_ROWS : rows;
+    }
+
+    private static Map<String, int[]> createIndex(String[] column) {
+        Map<String, List<Integer>> rowLists = new HashMap<String, List<Integer>>();
+        for (int row = 0; row < column.length; row++) {
+            String key = foldCase(column[row]);
+            List<Integer> rows = rowLists.get(key);
+            if (rows == null) {
+                rows = new ArrayList<Integer>(1);
+                rowLists.put(key, rows);
+            }
+            rows.add(row);
+        }
+
+        Map<String, int[]> index = new HashMap<String, int[]>(rowLists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Integer>> entry : rowLists.entrySet()) {
+            int[] rows = new int[entry.getValue().size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = entry.getValue().get(i);
+            }
+            index.put(entry.getKey(), rows);
+        }
+        return index;
+    }
+
+    /**
+     * @return the value of the queried column in the first row whose reference column has the
+     * given value, or "" if there is none
+     */
+    public String pull(String queriedColumn, String referenceColumn, String referenceValue) {
+        int queried = getColumn(ExternalDataUtil.toSafeColumnName(queriedColumn));
+        int reference = getColumn(ExternalDataUtil.toSafeColumnName(referenceColumn));
+        if (queried == -1 || reference == -1) {
+            Timber.e("No column %s or %s to pull data from", queriedColumn, referenceColumn);
+            return "";
+        }
+        int[] rows = getRows(reference, referenceValue);
+        if (rows.length == 0) {
+            Timber.e("Could not find a value in %s where the column %s has the value %s",
+                    queriedColumn, referenceColumn, referenceValue);
+            return "";
+        }
+        return values[queried][rows[0]];
+    }
+
+    /**
+     * Lower-cases ASCII letters only, like SQLite's "nocase" collation.
+     */
+    static String foldCase(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = value.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                        chars[j] += 'a' - 'A';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Matches the value against a LIKE pattern the way SQLite does by default: '%' stands for any
+     * sequence of characters, '_' for any one character, and the case of ASCII letters is ignored.
+     */
+    public static boolean like(String value, String pattern) {
+        String v = foldCase(value);
+        String p = foldCase(pattern);
+        int vi = 0;
+        int pi = 0;
+        // where to go back to after a mismatch: the last '%' and the value position it stood for
+        int star = -1;
+        int starValue = 0;
+        while (vi < v.length()) {
+            if (pi < p.length() && p.charAt(pi) == '%') {
+                star = pi++;
+                starValue = vi;
+            } else if (pi < p.length() && (p.charAt(pi) == '_' || p.charAt(pi) == v.charAt(vi))) {
+                pi++;
+                vi++;
+            } else if (star != -1) {
+                pi = star + 1;
+                vi = ++starValue;
+            } else {
+                return false;
+            }
+        }
+        while (pi < p.length() && p.charAt(pi) == '%') {
+            pi++;
+        }
+        return pi == p.length();
+    }
+}
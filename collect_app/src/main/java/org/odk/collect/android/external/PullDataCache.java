@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Remembers the results of pulldata() lookups for as long as a form is open.
+ *
+ * JavaRosa evaluates every calculate again after each answer, so the same lookups are repeated
+ * many times. The most recent results are kept here, and the lookups that do reach the database
+ * go through one compiled statement per data set and column pair.
+ */
+public class PullDataCache {
+
+    private static final int MAX_RESULTS = 2000;
+    private static final char SEPARATOR = '\u0000';
+
+    private final Map<String, String> results = new LinkedHashMap<String, String>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+    private final Map<String, Lookup> lookups = new HashMap<String, Lookup>();
+    private final Map<String, String> columnNamesCache = new HashMap<String, String>();
+
+    private int hitCount;
+    private int missCount;
+
+    private static class Lookup {
+        final SQLiteDatabase db;
+        final SQLiteStatement statement;
+
+        Lookup(SQLiteDatabase db, SQLiteStatement statement) {
+            this.db = db;
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * @return the value of the queried column in the first row whose reference column has the
+     * given value, or "" if there is none
+     */
+    public synchronized String get(String dataSetName, SQLiteDatabase db, String queriedColumn,
+            String referenceColumn, String referenceValue) {
+        String lookupKey = dataSetName + SEPARATOR + queriedColumn + SEPARATOR + referenceColumn;
+        String resultKey = lookupKey + SEPARATOR + referenceValue;
+        String result = results.get(resultKey);
+        if (result != null) {
+            hitCount++;
+            return result;
+        }
+        missCount++;
+
+        SQLiteStatement statement = getStatement(lookupKey, db, queriedColumn, referenceColumn);
+        statement.bindString(1, referenceValue);
+        try {
+            result = ExternalDataUtil.nullSafe(statement.simpleQueryForString());
+        } catch (SQLiteDoneException e) {
+            Timber.e("Could not find a value in %s where the column %s has the value %s",
+                    queriedColumn, referenceColumn, referenceValue);
+            result = "";
+        } finally {
+            statement.clearBindings();
+        }
+        results.put(resultKey, result);
+        return result;
+    }
+
+    private SQLiteStatement getStatement(String lookupKey, SQLiteDatabase db, String queriedColumn,
+            String referenceColumn) {
+        Lookup lookup = lookups.get(lookupKey);
+        if (lookup != null && lookup.db == db) {
+            return lookup.statement;
+        }
+        if (lookup != null) {
+            // the database has been reopened since
+            lookup.statement.close();
+        }
+
+        SQLiteStatement statement = db.compileStatement("SELECT "
+                + ExternalDataUtil.toSafeColumnName(queriedColumn, columnNamesCache) + " FROM "
+                + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " WHERE "
+                + ExternalDataUtil.toSafeColumnName(referenceColumn, columnNamesCache)
+                + " = ? LIMIT 1");
+        lookups.put(lookupKey, new Lookup(db, statement));
+        return statement;
+    }
+
+    /**
+     * Forgets the results and statements of a data set, e.g. because it has been imported again.
+     */
+    public synchronized void invalidate(String dataSetName) {
+        String prefix = dataSetName + SEPARATOR;
+        for (Iterator<String> it = results.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<String, Lookup>> it = lookups.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<String, Lookup> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                entry.getValue().statement.close();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        Timber.i("pulldata() cache: %d hits, %d misses", hitCount, missCount);
+        results.clear();
+        for (Lookup lookup : lookups.values()) {
+            lookup.statement.close();
+        }
+        lookups.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+}
@@ -18,14 +18,13 @@
 
 package org.odk.collect.android.external.handler;
 
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.external.ExternalDataManager;
-import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
+import org.odk.collect.android.external.InMemoryDataSet;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -80,8 +79,11 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
         try {
+            InMemoryDataSet dataSet = getExternalDataManager().getInMemoryDataSet(dataSetName);
+            if (dataSet != null) {
+                return dataSet.pull(queriedColumn, referenceColumn, referenceValue);
+            }
 
             ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
                     dataSetName, false);
@@ -90,27 +92,11 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
             }
 
             SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
-            String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
-            String[] selectionArgs = {referenceValue};
-
-            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection,
-                    selectionArgs, null, null, null);
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                return ExternalDataUtil.nullSafe(c.getString(0));
-            } else {
-                Timber.e("Could not find a value in %s where the column %s has the value %s",
-                        queriedColumn, referenceColumn, referenceValue);
-                return "";
-            }
+            return getExternalDataManager().getPullDataCache().get(dataSetName, db,
+                    queriedColumn, referenceColumn, referenceValue);
         } catch (Exception e) {
             Timber.e(e);
             return "";
-        } finally {
-            if (c != null) {
-                c.close();
-            }
         }
     }
 }
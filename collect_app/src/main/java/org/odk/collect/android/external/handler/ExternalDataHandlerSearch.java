@@ -19,6 +19,7 @@
 package org.odk.collect.android.external.handler;
 
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 
 import org.javarosa.core.model.SelectChoice;
@@ -28,9 +29,11 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.external.ExternalDataManager;
+import org.odk.collect.android.external.ExternalDataSearchIndex;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 import org.odk.collect.android.external.ExternalSelectChoice;
+import org.odk.collect.android.external.InMemoryDataSet;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -135,10 +138,6 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
         Cursor c = null;
         try {
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
-                    dataSetName, true);
-
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
             LinkedHashMap<String, String> selectColumnMap =
                     ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(),
                             getDisplayColumns());
@@ -152,6 +151,20 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
             String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
 
+            InMemoryDataSet dataSet = getExternalDataManager().getInMemoryDataSet(dataSetName);
+            if (dataSet != null) {
+                c = searchInMemory(dataSet, sqlColumns, externalDataSearchType, queriedColumns,
+                        queriedValue, filterColumn, filterValue);
+                if (c != null) {
+                    return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
+                }
+            }
+
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
+                    dataSetName, true);
+
+            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+
             String selection;
             String[] selectionArgs;
 
@@ -175,6 +188,21 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
                 selectionArgs = null;
             }
 
+            if (searchRows) {
+                String matchQuery = getMatchQuery(db, externalDataSearchType, queriedValue,
+                        queriedColumns);
+                if (matchQuery != null) {
+                    // the index narrows the rows down and the LIKE picks the right ones of those
+                    selection = "rowid IN (SELECT docid FROM " + ExternalDataSearchIndex.TABLE_NAME
+                            + " WHERE " + ExternalDataSearchIndex.TABLE_NAME + " MATCH ?) AND ("
+                            + selection + ")";
+                    String[] allArgs = new String[selectionArgs.length + 1];
+                    allArgs[0] = matchQuery;
+                    System.arraycopy(selectionArgs, 0, allArgs, 1, selectionArgs.length);
+                    selectionArgs = allArgs;
+                }
+            }
+
             try {
                 c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
                         selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
@@ -194,6 +222,89 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         }
     }
 
+    /**
+     * Runs the search on a data set held in memory, with the same results as the query on its
+     * database.
+     *
+     * @param queriedColumns safe names of the searched columns, or null to return all rows
+     * @param filterColumn   the column that has to have the filter value, or null
+     * @return the matching rows in a cursor that doesn't need to be closed, or null if the data
+     * set lacks a column, in which case the database reports it
+     */
+    protected Cursor searchInMemory(InMemoryDataSet dataSet, String[] sqlColumns,
+            ExternalDataSearchType externalDataSearchType, List<String> queriedColumns,
+            String queriedValue, String filterColumn, String filterValue) {
+        int[] columns = getColumns(dataSet, sqlColumns);
+        int[] searchedColumns = null;
+        String pattern = null;
+        if (queriedColumns != null) {
+            searchedColumns = getColumns(dataSet,
+                    queriedColumns.toArray(new String[queriedColumns.size()]));
+            pattern = externalDataSearchType.getSingleLikeArgument(queriedValue);
+        }
+        int[] rows = dataSet.getSortedRows();
+        if (filterColumn != null) {
+            int filter = dataSet.getColumn(ExternalDataUtil.toSafeColumnName(filterColumn));
+            rows = filter == -1 ? null : dataSet.sort(dataSet.getRows(filter, filterValue));
+        }
+        if (columns == null || (queriedColumns != null && searchedColumns == null)
+                || rows == null) {
+            return null;
+        }
+
+        MatrixCursor cursor = new MatrixCursor(sqlColumns);
+        Object[] values = new Object[columns.length];
+        for (int row : rows) {
+            if (searchedColumns != null && !matches(dataSet, row, searchedColumns, pattern)) {
+                continue;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = dataSet.getValue(columns[i], row);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static boolean matches(InMemoryDataSet dataSet, int row, int[] searchedColumns,
+            String pattern) {
+        for (int column : searchedColumns) {
+            if (InMemoryDataSet.like(dataSet.getValue(column, row), pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the indexes of the columns in the data set, or null if it lacks any of them
+     */
+    private static int[] getColumns(InMemoryDataSet dataSet, String[] columnNames) {
+        int[] columns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columns[i] = dataSet.getColumn(columnNames[i]);
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return the full-text query for the search, or null if there is no full-text index of the
+     * searched columns or the search can't use it
+     */
+    protected String getMatchQuery(SQLiteDatabase db, ExternalDataSearchType externalDataSearchType,
+            String queriedValue, List<String> queriedColumns) {
+        String matchQuery = externalDataSearchType.constructMatchQuery(queriedValue,
+                queriedColumns);
+        if (matchQuery == null || !ExternalDataSearchIndex.isEnabled()
+                || !ExternalDataSearchIndex.getColumns(db).containsAll(queriedColumns)) {
+            return null;
+        }
+        return matchQuery;
+    }
+
     protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c,
             LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
         List<String> columnsToExcludeFromLabels = new ArrayList<String>();
@@ -18,6 +18,10 @@
 
 package org.odk.collect.android.external.handler;
 
+import org.odk.collect.android.external.ExternalDataSearchIndex;
+
+import java.util.List;
+
 /**
  * Author: Meletis Margaritis
  * Date: 20/05/13
@@ -37,6 +41,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue;
         }
+
+        @Override
+        public String constructMatchQuery(String queriedValue, List<String> queriedColumns) {
+            return ExternalDataSearchIndex.toMatchQuery(queriedColumns, queriedValue, false);
+        }
     },
 
     STARTS("startsWith") {
@@ -44,6 +53,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue + '%';
         }
+
+        @Override
+        public String constructMatchQuery(String queriedValue, List<String> queriedColumns) {
+            return ExternalDataSearchIndex.toMatchQuery(queriedColumns, queriedValue, true);
+        }
     },
 
     ENDS("endsWith") {
@@ -85,5 +99,14 @@ enum ExternalDataSearchType {
         return args;
     }
 
+    /**
+     * @return a full-text query for at least the rows the LIKE arguments match, or null if the
+     * search can't use the full-text index. "contains" and "endsWith" can't, since they may start
+     * in the middle of a token.
+     */
+    public String constructMatchQuery(String queriedValue, List<String> queriedColumns) {
+        return null;
+    }
+
     protected abstract String getSingleLikeArgument(String queriedValue);
 }
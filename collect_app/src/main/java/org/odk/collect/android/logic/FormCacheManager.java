@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.preferences.PreferenceKeys;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Keeps {@link Collect#CACHE_PATH} within a configurable size.
+ *
+ * The cache holds a .formdef file per version of every form that was ever opened, savepoints and
+ * temporary download files. The manager removes .formdef files whose md5 no longer belongs to a
+ * form, temporary files left behind by interrupted writes and downloads, and then evicts the least
+ * recently used .formdef files until the cache fits its budget. Savepoints hold unsaved answers
+ * and are never evicted.
+ */
+public final class FormCacheManager {
+
+    public static final String FORMDEF_EXTENSION = ".formdef";
+    public static final String SAVEPOINT_EXTENSION = ".save";
+    private static final String TEMP_EXTENSION = ".partial";
+    private static final String TEMP_DOWNLOAD_EXTENSION = ".tempDownload";
+
+    // temporary files younger than this may still be in use
+    private static final long STALE_TEMP_FILE_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static final String STATS_PREFERENCES = "form_cache_stats";
+    private static final String KEY_HITS = "hits";
+    private static final String KEY_MISSES = "misses";
+
+    private static FormCacheManager instance;
+
+    private final SharedPreferences stats;
+
+    private FormCacheManager() {
+        stats = Collect.getInstance().getSharedPreferences(STATS_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized FormCacheManager getInstance() {
+        if (instance == null) {
+            instance = new FormCacheManager();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the .formdef cache file for the form definition with the given md5 hash
+     */
+    public static File getFormDefFile(String formHash) {
+        return new File(Collect.CACHE_PATH + File.separator + formHash + FORMDEF_EXTENSION);
+    }
+
+    /**
+     * @return the file to write before atomically moving it into place with
+     * {@link #commit(File, File)}
+     */
+    public static File getTempFile(File target) {
+        return new File(target.getParentFile(), target.getName() + TEMP_EXTENSION);
+    }
+
+    /**
+     * Moves a completely written temporary file over its target.
+     *
+     * @return true if the target now holds the new content
+     */
+    public static boolean commit(File temp, File target) {
+        if (temp.renameTo(target)) {
+            return true;
+        }
+        // some file systems refuse to rename over an existing file
+        if (target.delete() && temp.renameTo(target)) {
+            return true;
+        }
+        Timber.w("Unable to move %s into place", target.getAbsolutePath());
+        temp.delete();
+        return false;
+    }
+
+    /**
+     * Records that a form was opened from its cache and marks the cache file as recently used.
+     */
+    public void recordHit(File formDef) {
+        if (formDef.exists() && !formDef.setLastModified(System.currentTimeMillis())) {
+            Timber.w("Unable to update the last use of %s", formDef.getName());
+        }
+        increment(KEY_HITS);
+    }
+
+    /**
+     * Records that a form had to be parsed because it was not in the cache.
+     */
+    public void recordMiss() {
+        increment(KEY_MISSES);
+    }
+
+    /**
+     * Removes orphaned and stale files and evicts .formdef files until the cache fits its budget.
+     * Queries the forms database, so it must not be called on the main thread.
+     */
+    public synchronized void trim() {
+        removeStaleTempFiles();
+        removeOrphanedFormDefs();
+        enforceBudget();
+    }
+
+    /**
+     * Evicts the least recently used .formdef files until the cache fits its budget.
+     */
+    public synchronized void enforceBudget() {
+        long budget = getBudget();
+        if (budget <= 0) {
+            return;
+        }
+
+        File[] files = listCacheFiles();
+        long size = 0;
+        List<File> formDefs = new ArrayList<File>();
+        for (File file : files) {
+            size += file.length();
+            if (file.getName().endsWith(FORMDEF_EXTENSION)) {
+                formDefs.add(file);
+            }
+        }
+
+        File[] byAge = formDefs.toArray(new File[formDefs.size()]);
+        Arrays.sort(byAge, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < byAge.length && size > budget; i++) {
+            long length = byAge[i].length();
+            if (byAge[i].delete()) {
+                size -= length;
+                Timber.i("Evicted %s from the form cache", byAge[i].getName());
+            }
+        }
+    }
+
+    public Stats getStats() {
+        int fileCount = 0;
+        long size = 0;
+        for (File file : listCacheFiles()) {
+            fileCount++;
+            size += file.length();
+        }
+        return new Stats(fileCount, size, stats.getInt(KEY_HITS, 0), stats.getInt(KEY_MISSES, 0));
+    }
+
+    private void removeStaleTempFiles() {
+        long now = System.currentTimeMillis();
+        for (File file : listCacheFiles()) {
+            String name = file.getName();
+            if ((name.endsWith(TEMP_EXTENSION) || name.endsWith(TEMP_DOWNLOAD_EXTENSION))
+                    && now - file.lastModified() > STALE_TEMP_FILE_AGE_MS) {
+                Timber.i("Removing stale temporary file %s", name);
+                file.delete();
+            }
+        }
+    }
+
+    private void removeOrphanedFormDefs() {
+        Set<String> hashes = new HashSet<String>();
+        Cursor c = null;
+        try {
+            c = new FormsDao().getFormsCursor(new String[]{FormsColumns.MD5_HASH}, null, null,
+                    null);
+            if (c == null) {
+                return;
+            }
+            while (c.moveToNext()) {
+                hashes.add(c.getString(0));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        for (File file : listCacheFiles()) {
+            String name = file.getName();
+            if (name.endsWith(FORMDEF_EXTENSION)) {
+                String hash = name.substring(0, name.length() - FORMDEF_EXTENSION.length());
+                if (!hashes.contains(hash)) {
+                    Timber.i("Removing orphaned %s", name);
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private long getBudget() {
+        try {
+            Object value = GeneralSharedPreferences.getInstance()
+                    .get(PreferenceKeys.KEY_FORM_CACHE_SIZE);
+            return Long.parseLong((String) value) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            Timber.e(e);
+            return 0;
+        }
+    }
+
+    private File[] listCacheFiles() {
+        File[] files = new File(Collect.CACHE_PATH).listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> result = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isFile()) {
+                result.add(file);
+            }
+        }
+        return result.toArray(new File[result.size()]);
+    }
+
+    private synchronized void increment(String key) {
+        stats.edit().putInt(key, stats.getInt(key, 0) + 1).apply();
+    }
+
+    public static class Stats {
+        private final int fileCount;
+        private final long sizeInBytes;
+        private final int hits;
+        private final int misses;
+
+        Stats(int fileCount, long sizeInBytes, int hits, int misses) {
+            this.fileCount = fileCount;
+            this.sizeInBytes = sizeInBytes;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        public int getHitRatePercent() {
+            int total = hits + misses;
+            return total == 0 ? 0 : Math.round(100f * hits / total);
+        }
+    }
+}
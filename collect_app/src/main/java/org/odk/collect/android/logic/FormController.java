@@ -30,11 +30,9 @@ import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.IPropertyManager;
 import org.javarosa.core.services.PrototypeManager;
-import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.javarosa.model.xform.XFormsModule;
 import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xform.parse.XFormParser;
@@ -45,10 +43,17 @@ import org.odk.collect.android.views.ODKView;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -90,7 +95,7 @@ public class FormController {
         public final String instanceName;
         public final boolean audit;
 
-        InstanceMetadata(String instanceId, String instanceName, boolean audit) {
+        public InstanceMetadata(String instanceId, String instanceName, boolean audit) {
             this.instanceId = instanceId;
             this.instanceName = instanceName;
             this.audit = audit;
@@ -160,6 +165,11 @@ public class FormController {
     private FormEntryController formEntryController;
     private FormIndex indexWaitingForData = null;
 
+    private final ItemsetQueryCache itemsetQueryCache = new ItemsetQueryCache();
+
+    // changes whenever the instance does, see getAnswerGeneration
+    private volatile long answerGeneration;
+
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
         this.mediaFolder = mediaFolder;
         formEntryController = fec;
@@ -174,6 +184,21 @@ public class FormController {
         return mediaFolder;
     }
 
+    /**
+     * @return a number that changes whenever an answer is saved or a repeat is added or removed,
+     * so that the instance only has to be serialized again if it is different
+     */
+    public long getAnswerGeneration() {
+        return answerGeneration;
+    }
+
+    /**
+     * @return the itemset queries of the cascading selects of this form and their results
+     */
+    public ItemsetQueryCache getItemsetQueryCache() {
+        return itemsetQueryCache;
+    }
+
     public File getInstancePath() {
         return instancePath;
     }
@@ -196,8 +221,12 @@ public class FormController {
      * @return xpath value for this index
      */
     public String getXPath(FormIndex index) {
+        return getXPath(index, getEvent());
+    }
+
+    private static String getXPath(FormIndex index, int event) {
         String value;
-        switch (getEvent()) {
+        switch (event) {
             case FormEntryController.EVENT_BEGINNING_OF_FORM:
                 value = "beginningOfForm";
                 break;
@@ -226,37 +255,63 @@ public class FormController {
         return value;
     }
 
+    /**
+     * @return the FormIndex with the given xpath, as returned by {@link #getXPath(FormIndex)}, or
+     * null if stepping through the form doesn't reach it
+     */
     public FormIndex getIndexFromXPath(String xpath) {
-        switch (xpath) {
-            case "beginningOfForm":
-                return FormIndex.createBeginningOfFormIndex();
-            case "endOfForm":
-                return FormIndex.createEndOfFormIndex();
-            case "unexpected":
-                Timber.e("Unexpected string from XPath");
-                throw new IllegalArgumentException("unexpected string from XPath");
-            default:
-                FormIndex returned = null;
-                FormIndex saved = getFormIndex();
-                // the only way I know how to do this is to step through the entire form
-                // until the XPath of a form entry matches that of the supplied XPath
-                try {
-                    jumpToIndex(FormIndex.createBeginningOfFormIndex());
-                    int event = stepToNextEvent(true);
-                    while (event != FormEntryController.EVENT_END_OF_FORM) {
-                        String candidateXPath = getXPath(getFormIndex());
-                        // Log.i(t, "xpath: " + candidateXPath);
-                        if (candidateXPath.equals(xpath)) {
-                            returned = getFormIndex();
-                            break;
-                        }
-                        event = stepToNextEvent(true);
+        return getIndicesFromXPaths(Collections.singletonList(xpath)).get(xpath);
+    }
+
+    /**
+     * The only way to find the FormIndex of an xpath is to step through the entire form, so this
+     * finds several of them in the same pass, stopping once all are found. Nothing is kept, since
+     * relevance and repeats change which events stepping reaches.
+     *
+     * @return the FormIndex of each of the xpaths that stepping through the form reaches
+     */
+    public Map<String, FormIndex> getIndicesFromXPaths(Collection<String> xpaths) {
+        Map<String, FormIndex> indices = new HashMap<String, FormIndex>();
+        Set<String> pending = new HashSet<String>();
+        for (String xpath : xpaths) {
+            switch (xpath) {
+                case "beginningOfForm":
+                    indices.put(xpath, FormIndex.createBeginningOfFormIndex());
+                    break;
+                case "endOfForm":
+                    indices.put(xpath, FormIndex.createEndOfFormIndex());
+                    break;
+                case "unexpected":
+                    Timber.e("Unexpected string from XPath");
+                    throw new IllegalArgumentException("unexpected string from XPath");
+                default:
+                    pending.add(xpath);
+                    break;
+            }
+        }
+        if (pending.isEmpty()) {
+            return indices;
+        }
+
+        FormIndex saved = getFormIndex();
+        try {
+            jumpToIndex(FormIndex.createBeginningOfFormIndex());
+            int event = stepToNextEvent(true);
+            while (event != FormEntryController.EVENT_END_OF_FORM) {
+                FormIndex formIndex = getFormIndex();
+                String candidateXPath = getXPath(formIndex, event);
+                if (pending.remove(candidateXPath)) {
+                    indices.put(candidateXPath, formIndex);
+                    if (pending.isEmpty()) {
+                        break;
                     }
-                } finally {
-                    jumpToIndex(saved);
                 }
-                return returned;
+                event = stepToNextEvent(true);
+            }
+        } finally {
+            jumpToIndex(saved);
         }
+        return indices;
     }
 
     /**
@@ -447,6 +502,7 @@ public class FormController {
      * Attempts to save answer into the given FormIndex into the data model.
      */
     public int answerQuestion(FormIndex index, IAnswerData data) throws JavaRosaException {
+        answerGeneration++;
         try {
             return formEntryController.answerQuestion(index, data, true);
         } catch (Exception e) {
@@ -481,6 +537,7 @@ public class FormController {
      * @return true if saved successfully, false otherwise.
      */
     public boolean saveAnswer(FormIndex index, IAnswerData data) throws JavaRosaException {
+        answerGeneration++;
         try {
             return formEntryController.saveAnswer(index, data, true);
         } catch (Exception e) {
@@ -793,6 +850,7 @@ public class FormController {
      */
     public void newRepeat() {
         formEntryController.newRepeat();
+        answerGeneration++;
     }
 
 
@@ -804,6 +862,7 @@ public class FormController {
      */
     public void deleteRepeat() {
         FormIndex fi = formEntryController.deleteRepeat();
+        answerGeneration++;
         formEntryController.jumpToIndex(fi);
     }
 
@@ -1092,25 +1151,18 @@ public class FormController {
     }
 
     /**
-     * Constructs the XML payload for a filled-in form instance. This payload
-     * enables a filled-in form to be re-opened and edited.
+     * Writes the XML of the filled-in form instance, which enables it to be re-opened and edited.
      */
-    public ByteArrayPayload getFilledInFormXml() throws IOException {
+    public void writeFilledInFormXml(OutputStream out) throws IOException {
         // assume no binary data inside the model.
-        FormInstance datamodel = getInstance();
-        XFormSerializingVisitor serializer = new XFormSerializingVisitor();
-
-        return (ByteArrayPayload) serializer.createSerializedPayload(datamodel);
+        InstanceXmlSerializer.write(getInstance(), new XPathReference("/"), out);
     }
 
     /**
-     * Extract the portion of the form that should be uploaded to the server.
+     * Writes the XML of the portion of the form that should be uploaded to the server.
      */
-    public ByteArrayPayload getSubmissionXml() throws IOException {
-        FormInstance instance = getInstance();
-        XFormSerializingVisitor serializer = new XFormSerializingVisitor();
-        return (ByteArrayPayload) serializer.createSerializedPayload(instance,
-                getSubmissionDataReference());
+    public void writeSubmissionXml(OutputStream out) throws IOException {
+        InstanceXmlSerializer.write(getInstance(), getSubmissionDataReference(), out);
     }
 
     /**
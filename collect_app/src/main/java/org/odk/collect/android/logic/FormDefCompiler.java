@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import android.os.Process;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.listeners.FormCompilationListener;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Compiles form definitions into their binary .formdef cache on a low priority background thread
+ * so that the first time a freshly downloaded or copied form is opened costs the same as any
+ * later open.
+ */
+public final class FormDefCompiler {
+
+    private static final FormDefCompiler INSTANCE = new FormDefCompiler();
+
+    private final Map<String, Future<?>> pending = new HashMap<String, Future<?>>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    runnable.run();
+                }
+            }, "FormDefCompiler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private FormCompilationListener listener;
+
+    private FormDefCompiler() {
+    }
+
+    public static FormDefCompiler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Writes the FormDef to the given cache file unless it already exists. The file is written
+     * under a temporary name first so that a reader never sees a partially written cache.
+     */
+    public static void writeFormDef(FormDef fd, File formDef) {
+        if (formDef.exists()) {
+            return;
+        }
+
+        File temp = FormCacheManager.getTempFile(formDef);
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new FileOutputStream(temp));
+            fd.writeExternal(dos);
+            dos.flush();
+            dos.close();
+            dos = null;
+            FormCacheManager.commit(temp, formDef);
+        } catch (IOException e) {
+            Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(dos);
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Queues the given form definition file to be compiled into its cache. Does nothing if the
+     * form is already queued.
+     */
+    public synchronized void compile(final File formXml) {
+        final String path = formXml.getAbsolutePath();
+        if (pending.containsKey(path)) {
+            return;
+        }
+
+        pending.put(path, executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compileNow(formXml);
+                } finally {
+                    synchronized (FormDefCompiler.this) {
+                        pending.remove(path);
+                        if (listener != null) {
+                            listener.formCompiled(path);
+                        }
+                    }
+                }
+            }
+        }));
+        Timber.i("Queued %s for compilation", formXml.getName());
+    }
+
+    /**
+     * @return true if the form definition file is waiting for or undergoing compilation
+     */
+    public synchronized boolean isPending(String formPath) {
+        return pending.containsKey(new File(formPath).getAbsolutePath());
+    }
+
+    /**
+     * Makes sure no background compilation of the given form is in progress when this returns.
+     * A compilation that has not started yet is dropped, since the caller is about to load the
+     * form itself; one that is running is waited for so its cache can be used.
+     */
+    public void awaitCompilation(String formPath) {
+        String path = new File(formPath).getAbsolutePath();
+        Future<?> future;
+        synchronized (this) {
+            future = pending.get(path);
+            if (future == null) {
+                return;
+            }
+            if (future.cancel(false)) {
+                // the task will never run, so it cannot clean up after itself
+                pending.remove(path);
+                if (listener != null) {
+                    listener.formCompiled(path);
+                }
+                return;
+            }
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Timber.e(e);
+        }
+    }
+
+    public synchronized void setFormCompilationListener(FormCompilationListener listener) {
+        this.listener = listener;
+    }
+
+    private void compileNow(File formXml) {
+        if (!formXml.exists()) {
+            return;
+        }
+        String formHash = FileUtils.getMd5Hash(formXml);
+        if (formHash == null) {
+            return;
+        }
+        File formDef = FormCacheManager.getFormDefFile(formHash);
+        if (formDef.exists()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(formXml);
+            FormDef fd = XFormUtils.getFormFromInputStream(fis);
+            if (fd != null) {
+                writeFormDef(fd, formDef);
+                Timber.i("Compiled %s in %d ms", formXml.getName(),
+                        System.currentTimeMillis() - start);
+                FormCacheManager.getInstance().enforceBudget();
+            }
+        } catch (Exception e) {
+            // the form will be parsed and reported when it is opened
+            Timber.w(e, "Unable to compile %s", formXml.getName());
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import android.content.ComponentCallbacks2;
+import android.os.Process;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Process-wide, memory-bounded pool of pristine {@link FormDef} templates keyed by the md5 of
+ * the form definition file.
+ *
+ * A FormDef is mutated as soon as an instance is loaded into it, so a template can only be handed
+ * out once. The pool keeps the serialized bytes of every form it knows about and rebuilds a
+ * fresh template from them on a background thread right after a template is taken. Reopening
+ * the same form (e.g. back-to-back household interviews) then gets a ready template instead of
+ * reading and deserializing the .formdef file from the sdcard.
+ */
+public final class FormDefPool {
+
+    private static final FormDefPool INSTANCE = new FormDefPool();
+
+    // serialized bytes are a rough proxy for the size of the deserialized object graph
+    private static final int OBJECT_GRAPH_SIZE_FACTOR = 4;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FormDefPool");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private long maxBytes = Runtime.getRuntime().maxMemory() / (8 * OBJECT_GRAPH_SIZE_FACTOR);
+    private long currentBytes = 0;
+    private int hitCount = 0;
+    private int missCount = 0;
+
+    private FormDefPool() {
+    }
+
+    public static FormDefPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Hands out the pooled template for the given form, if one is ready. The caller owns the
+     * returned FormDef. A replacement template is built in the background.
+     *
+     * @param formHash md5 of the form definition file
+     * @return a pristine FormDef or null if none is ready
+     */
+    public synchronized FormDef take(String formHash) {
+        Entry entry = formHash == null ? null : entries.get(formHash);
+        if (entry == null || entry.template == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        FormDef template = entry.template;
+        entry.template = null;
+        scheduleRebuild(formHash, entry);
+        return template;
+    }
+
+    /**
+     * Makes the serialized FormDef in the given cache file available to the pool. The file is read
+     * and a template is deserialized on a background thread.
+     *
+     * @param formHash md5 of the form definition file
+     * @param formBin  the .formdef cache file of that form
+     */
+    public void offer(final String formHash, final File formBin) {
+        if (formHash == null) {
+            return;
+        }
+        synchronized (this) {
+            if (entries.containsKey(formHash) || formBin.length() * OBJECT_GRAPH_SIZE_FACTOR
+                    > maxBytes) {
+                return;
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = FileUtils.getFileAsBytes(formBin);
+                if (bytes == null) {
+                    return;
+                }
+                FormDef template = deserialize(bytes);
+                if (template == null) {
+                    return;
+                }
+                synchronized (FormDefPool.this) {
+                    if (!entries.containsKey(formHash)) {
+                        Entry entry = new Entry(bytes);
+                        entry.template = template;
+                        entries.put(formHash, entry);
+                        currentBytes += entry.size();
+                        evictToSize(maxBytes);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the pooled data for a form, e.g. because the form definition was replaced.
+     */
+    public synchronized void remove(String formHash) {
+        Entry entry = entries.remove(formHash);
+        if (entry != null) {
+            currentBytes -= entry.size();
+        }
+    }
+
+    /**
+     * Releases pooled templates in response to {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            evictToSize(maxBytes / 2);
+        }
+        Timber.i("Trimmed form pool (level %d) to %d bytes", level, currentBytes);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictToSize(maxBytes);
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return currentBytes;
+    }
+
+    private void scheduleRebuild(final String formHash, final Entry entry) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FormDef template = deserialize(entry.bytes);
+                synchronized (FormDefPool.this) {
+                    // the entry may have been evicted in the meantime
+                    if (entries.get(formHash) == entry) {
+                        entry.template = template;
+                    }
+                }
+            }
+        });
+    }
+
+    private void evictToSize(long size) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            currentBytes -= eldest.getValue().size();
+            iterator.remove();
+            Timber.i("Evicted form %s from the form pool", eldest.getKey());
+        }
+    }
+
+    private static FormDef deserialize(byte[] bytes) {
+        try {
+            FormDef fd = new FormDef();
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+            fd.readExternal(dis, ExtUtil.defaultPrototypes());
+            dis.close();
+            return fd;
+        } catch (Exception e) {
+            Timber.e(e, "Unable to build a pooled form template");
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final byte[] bytes;
+        FormDef template;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long size() {
+            return (long) bytes.length * OBJECT_GRAPH_SIZE_FACTOR;
+        }
+    }
+}
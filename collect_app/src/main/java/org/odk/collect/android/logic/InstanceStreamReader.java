@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a saved instance file into a tree of {@link TreeElement}s by pull-parsing it.
+ *
+ * Produces the same tree as {@code XFormParser.restoreDataModel(bytes, null).getRoot()}, which
+ * needs the whole file as a byte array and builds a complete XML document from it before building
+ * the tree. Here the file is streamed and only the resulting tree is kept, so restoring large
+ * instances (many repeats, long geotraces) no longer holds three copies of the data at once.
+ */
+public final class InstanceStreamReader {
+
+    private InstanceStreamReader() {
+    }
+
+    /**
+     * @return the root of the saved instance, with multiplicity 0
+     */
+    public static TreeElement read(File instanceFile) throws IOException, XmlPullParserException {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(instanceFile));
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, null);
+            return read(parser);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static TreeElement read(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        List<OpenElement> open = new ArrayList<OpenElement>();
+        TreeElement root = null;
+
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            switch (event) {
+                case XmlPullParser.START_TAG: {
+                    OpenElement parent = open.isEmpty() ? null : open.get(open.size() - 1);
+                    String name = parser.getName();
+                    TreeElement element = new TreeElement(name,
+                            parent == null ? 0 : parent.nextMultiplicity(name));
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        element.setAttribute(parser.getAttributeNamespace(i),
+                                parser.getAttributeName(i), parser.getAttributeValue(i));
+                    }
+
+                    if (parent == null) {
+                        if (root != null) {
+                            throw new XmlPullParserException("More than one root element", parser,
+                                    null);
+                        }
+                        root = element;
+                    } else {
+                        parent.element.addChild(element);
+                    }
+                    open.add(new OpenElement(element));
+                    break;
+                }
+                case XmlPullParser.TEXT:
+                    if (!open.isEmpty()) {
+                        open.get(open.size() - 1).appendText(parser.getText());
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    open.remove(open.size() - 1).close();
+                    break;
+                default:
+                    break;
+            }
+            event = parser.next();
+        }
+
+        if (root == null) {
+            throw new XmlPullParserException("No root element", parser, null);
+        }
+        return root;
+    }
+
+    private static class OpenElement {
+        final TreeElement element;
+        // created once the first child element is seen
+        Map<String, Integer> childCounts;
+        StringBuilder text;
+
+        OpenElement(TreeElement element) {
+            this.element = element;
+        }
+
+        int nextMultiplicity(String name) {
+            if (childCounts == null) {
+                childCounts = new HashMap<String, Integer>();
+                // text next to child elements is not a value
+                text = null;
+            }
+            Integer count = childCounts.get(name);
+            int multiplicity = count == null ? 0 : count;
+            childCounts.put(name, multiplicity + 1);
+            return multiplicity;
+        }
+
+        void appendText(String chunk) {
+            if (childCounts != null) {
+                return;
+            }
+            if (text == null) {
+                text = new StringBuilder(chunk);
+            } else {
+                text.append(chunk);
+            }
+        }
+
+        void close() {
+            if (text != null) {
+                // like restoreDataModel, whitespace-only values are ignored and values trimmed
+                String value = text.toString().trim();
+                if (value.length() > 0) {
+                    element.setValue(new StringData(value));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import org.javarosa.core.model.IDataReference;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.util.XFormAnswerDataSerializer;
+import org.kxml2.io.KXmlSerializer;
+import org.kxml2.kdom.Element;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a form instance, or the part of it that is submitted, as UTF-8 XML to a stream.
+ *
+ * The output is the same as that of JavaRosa's XFormSerializingVisitor, which builds a kXML
+ * document of the whole instance and then serializes it into a byte array. Here the tree is walked
+ * once and each node goes straight to the serializer, so saving a large instance does not hold
+ * copies of it on the heap and the stream can be a file, a cipher or anything else.
+ */
+public final class InstanceXmlSerializer {
+
+    private final XFormAnswerDataSerializer answerSerializer = new XFormAnswerDataSerializer();
+    private final KXmlSerializer serializer = new KXmlSerializer();
+
+    private InstanceXmlSerializer() {
+    }
+
+    /**
+     * Writes the subtree of the instance at the reference, or the whole instance if the reference
+     * does not resolve to a node. The stream is flushed but not closed.
+     */
+    public static void write(FormInstance instance, IDataReference ref, OutputStream out)
+            throws IOException {
+        new InstanceXmlSerializer().serialize(instance, ref, out);
+    }
+
+    private void serialize(FormInstance instance, IDataReference ref, OutputStream out)
+            throws IOException {
+        serializer.setOutput(new OutputStreamWriter(out, "UTF-8"));
+        serializer.startDocument(null, null);
+
+        TreeElement root = instance.resolveReference(FormInstance.unpackReference(ref));
+        if (root == null) {
+            root = instance.getRoot();
+        }
+        if (root != null && isSerialized(root)) {
+            // the namespaces of the instance are declared on the top element
+            for (String prefix : instance.getNamespacePrefixes()) {
+                serializer.setPrefix(prefix, instance.getNamespaceURI(prefix));
+            }
+            String namespace = root.getNamespace();
+            if (instance.schema != null) {
+                serializer.setPrefix("", instance.schema);
+                namespace = instance.schema;
+            }
+            writeNode(root, namespace);
+        }
+
+        serializer.endDocument();
+    }
+
+    private void writeNode(TreeElement node, String namespace) throws IOException {
+        if (node.getValue() != null) {
+            Object answer = answerSerializer.serializeAnswerData(node.getValue(),
+                    node.getDataType());
+            if (answer instanceof Element) {
+                writeAnswerElement(node, (Element) answer, namespace);
+                return;
+            } else if (!(answer instanceof String)) {
+                throw new RuntimeException("Can't handle serialized output for "
+                        + node.getValue().toString() + ", " + answer);
+            }
+            startTag(node, namespace);
+            serializer.text((String) answer);
+        } else {
+            startTag(node, namespace);
+            // all children of the same name are written together, in order of first appearance
+            List<String> childNames = new ArrayList<String>(node.getNumChildren());
+            for (int i = 0; i < node.getNumChildren(); i++) {
+                String childName = node.getChildAt(i).getName();
+                if (!childNames.contains(childName)) {
+                    childNames.add(childName);
+                }
+            }
+            for (String childName : childNames) {
+                int mult = node.getChildMultiplicity(childName);
+                for (int j = 0; j < mult; j++) {
+                    TreeElement child = node.getChild(childName, j);
+                    if (isSerialized(child)) {
+                        writeNode(child, child.getNamespace());
+                    }
+                }
+            }
+        }
+        serializer.endTag(namespace, node.getName());
+    }
+
+    private void startTag(TreeElement node, String namespace) throws IOException {
+        serializer.startTag(namespace, node.getName());
+        for (int i = 0; i < node.getAttributeCount(); i++) {
+            String attributeNamespace = node.getAttributeNamespace(i);
+            String value = node.getAttributeValue(i);
+            serializer.attribute(attributeNamespace == null ? "" : attributeNamespace,
+                    node.getAttributeName(i), value == null ? "" : value);
+        }
+    }
+
+    /**
+     * Writes an answer that serializes to markup rather than text, naming it after the node.
+     */
+    private void writeAnswerElement(TreeElement node, Element element, String namespace)
+            throws IOException {
+        element.setName(node.getName());
+        for (int i = 0; i < node.getAttributeCount(); i++) {
+            String value = node.getAttributeValue(i);
+            element.setAttribute(node.getAttributeNamespace(i), node.getAttributeName(i),
+                    value == null ? "" : value);
+        }
+        if (namespace != null) {
+            element.setNamespace(namespace);
+        }
+        element.write(serializer);
+    }
+
+    /**
+     * Templates of repeats and non-relevant nodes are left out of the XML.
+     */
+    private static boolean isSerialized(TreeElement node) {
+        return node.isRelevant() && node.getMult() != TreeReference.INDEX_TEMPLATE;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import android.database.Cursor;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathNodeset;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+import org.odk.collect.android.database.ItemsetDbAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Remembers the itemset queries of cascading selects and their results for as long as a form is
+ * open.
+ *
+ * The query attribute of each select is compiled once into a {@link Plan}: the selection on the
+ * itemset table and the parsed expressions of its arguments. The results are kept by the values
+ * of the arguments, so going back and forth between the levels of a cascade does not query the
+ * itemsets database again. The database is kept open until {@link #close()}.
+ */
+public class ItemsetQueryCache {
+
+    private static final int MAX_RESULTS = 100;
+    private static final char SEPARATOR = '\u0000';
+
+    private final Map<String, Plan> plans = new HashMap<String, Plan>();
+    private final Map<String, String> tableHashes = new HashMap<String, String>();
+    private final Map<String, List<Item>> results = new LinkedHashMap<String, List<Item>>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Item>> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    private ItemsetDbAdapter adapter;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * A choice of an itemset: its label in the language it was read for, and its value.
+     */
+    public static class Item {
+        public final String label;
+        public final String value;
+
+        Item(String label, String value) {
+            this.label = label;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The compiled query attribute of a select, e.g.
+     * instance('cities')/root/item[state=/data/state and county=/data/county]
+     */
+    public static class Plan {
+        private final String listName;
+        private final String selection;
+        private final List<XPathExpression> arguments = new ArrayList<XPathExpression>();
+        private String parseError;
+
+        Plan(String query) {
+            // the list name is between the ''
+            listName = query.substring(query.indexOf("'") + 1, query.lastIndexOf("'"));
+
+            // isolate the string between between the [ ] characters
+            String queryString = query.substring(query.indexOf("[") + 1,
+                    query.lastIndexOf("]"));
+
+            StringBuilder selection = new StringBuilder();
+            // add the list name as the first argument, which will always be there
+            selection.append("list_name=?");
+            if (queryString.indexOf("=") != -1) {
+                selection.append(" and ");
+            }
+
+            // can't just split on 'and' or 'or' because they have different behavior, so break
+            // them off one by one. The spaces keep them from matching words like "land".
+            List<String> argumentStrings = new ArrayList<String>();
+            int andIndex = -1;
+            int orIndex = -1;
+            while ((andIndex = queryString.indexOf(" and ")) != -1
+                    || (orIndex = queryString.indexOf(" or ")) != -1) {
+                if (andIndex != -1) {
+                    addCondition(queryString.substring(0, andIndex), " and ", selection,
+                            argumentStrings);
+                    queryString = queryString.substring(andIndex + 5);
+                    andIndex = -1;
+                } else if (orIndex != -1) {
+                    addCondition(queryString.substring(0, orIndex), " or ", selection,
+                            argumentStrings);
+                    queryString = queryString.substring(orIndex + 4);
+                    orIndex = -1;
+                }
+            }
+            // the last segment, or the only one if there are no 'and' or 'or' clauses. Without
+            // an '=' all the items of the list are shown.
+            addCondition(queryString, "", selection, argumentStrings);
+            this.selection = selection.toString();
+
+            for (String argument : argumentStrings) {
+                try {
+                    arguments.add(XPathParseTool.parseXPath(argument));
+                } catch (XPathSyntaxException e) {
+                    Timber.e(e);
+                    parseError = argument;
+                    break;
+                }
+            }
+        }
+
+        private static void addCondition(String condition, String operator,
+                StringBuilder selection, List<String> argumentStrings) {
+            String[] pair = condition.split("=");
+            if (pair.length == 2) {
+                selection.append(pair[0].trim()).append("=?").append(operator);
+                argumentStrings.add(pair[1].trim());
+            }
+        }
+
+        /**
+         * @return the argument that could not be parsed, or null if the query is usable
+         */
+        public String getParseError() {
+            return parseError;
+        }
+
+        /**
+         * @return the values to select the items by, starting with the list name, or null if one
+         * of the arguments has no value
+         */
+        public String[] evaluateArguments(FormDef form, TreeReference questionReference) {
+            String[] selectionArgs = new String[arguments.size() + 1];
+            selectionArgs[0] = listName;
+            if (arguments.isEmpty()) {
+                return selectionArgs;
+            }
+
+            TreeElement treeElement = form.getMainInstance().resolveReference(questionReference);
+            EvaluationContext ec = new EvaluationContext(form.getEvaluationContext(),
+                    treeElement.getRef());
+            for (int i = 0; i < arguments.size(); i++) {
+                Object value = arguments.get(i).eval(form.getMainInstance(), ec);
+                if (value instanceof XPathNodeset) {
+                    value = ((XPathNodeset) value).getValAt(0);
+                }
+                if (value == null) {
+                    return null;
+                }
+                selectionArgs[i + 1] = value.toString();
+            }
+            return selectionArgs;
+        }
+    }
+
+    public synchronized Plan getPlan(String query) {
+        Plan plan = plans.get(query);
+        if (plan == null) {
+            plan = new Plan(query);
+            plans.put(query, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @param language the language of the form, or "" if it has none
+     * @return the items of the itemsets.csv that match the evaluated arguments of the plan
+     */
+    public synchronized List<Item> getItems(Plan plan, File itemsetFile, String[] selectionArgs,
+            String language) {
+        StringBuilder key = new StringBuilder(itemsetFile.getAbsolutePath()).append(SEPARATOR)
+                .append(plan.selection).append(SEPARATOR).append(language);
+        for (String selectionArg : selectionArgs) {
+            key.append(SEPARATOR).append(selectionArg);
+        }
+        String resultKey = key.toString();
+        List<Item> items = results.get(resultKey);
+        if (items != null) {
+            hitCount++;
+            return items;
+        }
+        missCount++;
+
+        if (adapter == null) {
+            adapter = new ItemsetDbAdapter();
+            adapter.open();
+        }
+        items = new ArrayList<Item>();
+        Cursor c = adapter.query(getTableHash(itemsetFile), plan.selection, selectionArgs);
+        if (c != null) {
+            try {
+                // the label in the language of the form if there is one
+                int labelColumn = c.getColumnIndex("label::" + language);
+                if (labelColumn == -1) {
+                    labelColumn = c.getColumnIndex("label");
+                }
+                int valueColumn = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    items.add(new Item(c.getString(labelColumn), c.getString(valueColumn)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        items = Collections.unmodifiableList(items);
+        results.put(resultKey, items);
+        return items;
+    }
+
+    private String getTableHash(File itemsetFile) {
+        String path = itemsetFile.getAbsolutePath();
+        String tableHash = tableHashes.get(path);
+        if (tableHash == null) {
+            tableHash = ItemsetDbAdapter.getMd5FromString(path);
+            tableHashes.put(path, tableHash);
+        }
+        return tableHash;
+    }
+
+    /**
+     * Closes the itemsets database. It is opened again if more items are needed; the plans and
+     * results are kept.
+     */
+    public synchronized void close() {
+        if (adapter != null) {
+            Timber.i("Itemset cache: %d hits, %d misses", hitCount, missCount);
+            adapter.close();
+            adapter = null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.preferences;
+
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.preference.Preference;
+import android.support.annotation.Nullable;
+import android.view.View;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.PerformanceLog;
+import org.odk.collect.android.utilities.ToastUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_PERFORMANCE_LOG_CLEAR;
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_PERFORMANCE_LOG_EXPORT;
+
+public class DeveloperPreferences extends BasePreferenceFragment {
+
+    private static final String TIMINGS_FILE = "performance_timings.csv";
+    private static final String HISTOGRAMS_FILE = "performance_histograms.csv";
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        addPreferencesFromResource(R.xml.developer_preferences);
+
+        initPerformanceLogPrefs();
+    }
+
+    @Override
+    public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        toolbar.setTitle(R.string.developer_preferences);
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        if (toolbar != null) {
+            toolbar.setTitle(R.string.general_preferences);
+        }
+    }
+
+    private void initPerformanceLogPrefs() {
+        final Preference export = findPreference(KEY_PERFORMANCE_LOG_EXPORT);
+        final Preference clear = findPreference(KEY_PERFORMANCE_LOG_CLEAR);
+
+        if (export == null || clear == null) {
+            return;
+        }
+
+        updateTimingCount(export);
+        export.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(final Preference preference) {
+                preference.setEnabled(false);
+                new AsyncTask<Void, Void, Boolean>() {
+                    @Override
+                    protected Boolean doInBackground(Void... params) {
+                        try {
+                            PerformanceLog.getInstance().exportCsv(
+                                    new File(Collect.LOG_PATH, TIMINGS_FILE),
+                                    new File(Collect.LOG_PATH, HISTOGRAMS_FILE));
+                            return true;
+                        } catch (IOException e) {
+                            Timber.e(e);
+                            return false;
+                        }
+                    }
+
+                    @Override
+                    protected void onPostExecute(Boolean exported) {
+                        preference.setEnabled(true);
+                        if (exported) {
+                            ToastUtils.showLongToast(Collect.getInstance().getString(
+                                    R.string.performance_log_exported, Collect.LOG_PATH));
+                        } else {
+                            ToastUtils.showLongToast(R.string.performance_log_export_failed);
+                        }
+                    }
+                }.execute();
+                return true;
+            }
+        });
+
+        clear.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(final Preference preference) {
+                preference.setEnabled(false);
+                new AsyncTask<Void, Void, Void>() {
+                    @Override
+                    protected Void doInBackground(Void... params) {
+                        PerformanceLog.getInstance().clear();
+                        return null;
+                    }
+
+                    @Override
+                    protected void onPostExecute(Void result) {
+                        preference.setEnabled(true);
+                        updateTimingCount(export);
+                    }
+                }.execute();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Counts the timings in the background and shows the count in the summary of the export.
+     */
+    private void updateTimingCount(final Preference export) {
+        new AsyncTask<Void, Void, Long>() {
+            @Override
+            protected Long doInBackground(Void... params) {
+                return PerformanceLog.getInstance().getTimingCount();
+            }
+
+            @Override
+            protected void onPostExecute(Long count) {
+                export.setSummary(Collect.getInstance().getString(
+                        R.string.performance_log_export_summary, count));
+            }
+        }.execute();
+    }
+}
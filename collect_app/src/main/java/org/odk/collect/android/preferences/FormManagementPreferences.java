@@ -14,16 +14,24 @@
 
 package org.odk.collect.android.preferences;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.support.annotation.Nullable;
+import android.text.format.Formatter;
 import android.view.View;
 
 import org.odk.collect.android.R;
+import org.odk.collect.android.logic.FormCacheManager;
 
 import static org.odk.collect.android.preferences.PreferenceKeys.KEY_AUTOSEND;
 import static org.odk.collect.android.preferences.PreferenceKeys.KEY_CONSTRAINT_BEHAVIOR;
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_EXTERNAL_DATA_IMPORT;
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_EXTERNAL_DATA_MEMORY_ROWS;
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_FORM_CACHE_SIZE;
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_FORM_CACHE_STATS;
+import static org.odk.collect.android.preferences.PreferenceKeys.KEY_INSTANCE_WRITE_DURABILITY;
 
 public class FormManagementPreferences extends BasePreferenceFragment {
 
@@ -33,7 +41,11 @@ public class FormManagementPreferences extends BasePreferenceFragment {
         addPreferencesFromResource(R.xml.form_management_preferences);
 
         initConstraintBehaviorPref();
+        initExternalDataImportPref();
+        initExternalDataMemoryRowsPref();
+        initInstanceWriteDurabilityPref();
         initAutoSendPrefs();
+        initFormCachePrefs();
     }
 
     @Override
@@ -71,6 +83,60 @@ public class FormManagementPreferences extends BasePreferenceFragment {
         }
     }
 
+    private void initExternalDataImportPref() {
+        final ListPreference pref = (ListPreference) findPreference(KEY_EXTERNAL_DATA_IMPORT);
+
+        if (pref == null) {
+            return;
+        }
+
+        pref.setSummary(pref.getEntry());
+        pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+                preference.setSummary(((ListPreference) preference).getEntries()[index]);
+                return true;
+            }
+        });
+    }
+
+    private void initExternalDataMemoryRowsPref() {
+        final ListPreference pref = (ListPreference) findPreference(KEY_EXTERNAL_DATA_MEMORY_ROWS);
+
+        if (pref == null) {
+            return;
+        }
+
+        pref.setSummary(pref.getEntry());
+        pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+                preference.setSummary(((ListPreference) preference).getEntries()[index]);
+                return true;
+            }
+        });
+    }
+
+    private void initInstanceWriteDurabilityPref() {
+        final ListPreference pref = (ListPreference) findPreference(KEY_INSTANCE_WRITE_DURABILITY);
+
+        if (pref == null) {
+            return;
+        }
+
+        pref.setSummary(pref.getEntry());
+        pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+                preference.setSummary(((ListPreference) preference).getEntries()[index]);
+                return true;
+            }
+        });
+    }
+
     private void initAutoSendPrefs() {
         final ListPreference autosend = (ListPreference) findPreference(KEY_AUTOSEND);
 
@@ -89,4 +155,54 @@ public class FormManagementPreferences extends BasePreferenceFragment {
             }
         });
     }
+
+    private void initFormCachePrefs() {
+        final ListPreference size = (ListPreference) findPreference(KEY_FORM_CACHE_SIZE);
+        final Preference stats = findPreference(KEY_FORM_CACHE_STATS);
+
+        if (size == null || stats == null) {
+            return;
+        }
+
+        size.setSummary(size.getEntry());
+        size.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+                preference.setSummary(((ListPreference) preference).getEntries()[index]);
+                return true;
+            }
+        });
+
+        updateFormCacheStats(stats);
+        stats.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(final Preference preference) {
+                preference.setEnabled(false);
+                new AsyncTask<Void, Void, Void>() {
+                    @Override
+                    protected Void doInBackground(Void... params) {
+                        FormCacheManager.getInstance().trim();
+                        return null;
+                    }
+
+                    @Override
+                    protected void onPostExecute(Void result) {
+                        preference.setEnabled(true);
+                        if (isAdded()) {
+                            updateFormCacheStats(preference);
+                        }
+                    }
+                }.execute();
+                return true;
+            }
+        });
+    }
+
+    private void updateFormCacheStats(Preference preference) {
+        FormCacheManager.Stats stats = FormCacheManager.getInstance().getStats();
+        preference.setSummary(getString(R.string.form_cache_stats_summary,
+                Formatter.formatFileSize(getActivity(), stats.getSizeInBytes()),
+                stats.getFileCount(), stats.getHitRatePercent()));
+    }
 }
@@ -60,6 +60,19 @@ public final class PreferenceKeys {
 
     public static final String KEY_NAVIGATION               = "navigation";
     public static final String KEY_CONSTRAINT_BEHAVIOR      = "constraint_behavior";
+    public static final String KEY_EXTERNAL_DATA_IMPORT     = "external_data_import";
+    public static final String KEY_EXTERNAL_DATA_SEARCH_INDEX = "external_data_search_index";
+    public static final String KEY_EXTERNAL_DATA_MEMORY_ROWS = "external_data_memory_rows";
+    public static final String KEY_INSTANCE_WRITE_DURABILITY = "instance_write_durability";
+
+    // FORM CACHE
+    public static final String KEY_FORM_CACHE_SIZE          = "form_cache_size";
+    static final String KEY_FORM_CACHE_STATS                = "form_cache_stats";
+
+    // DEVELOPER
+    public static final String KEY_PERFORMANCE_LOG          = "performance_log";
+    static final String KEY_PERFORMANCE_LOG_EXPORT          = "performance_log_export";
+    static final String KEY_PERFORMANCE_LOG_CLEAR           = "performance_log_clear";
 
     // MAP SPECIFIC
 
@@ -93,10 +106,16 @@ public final class PreferenceKeys {
         hashMap.put(KEY_SUBMISSION_URL,             Collect.getInstance().getString(R.string.default_odk_submission));
         hashMap.put(KEY_NAVIGATION,                 "swipe");
         hashMap.put(KEY_CONSTRAINT_BEHAVIOR,        "on_swipe");
+        hashMap.put(KEY_EXTERNAL_DATA_IMPORT,       "lazy");
+        hashMap.put(KEY_EXTERNAL_DATA_SEARCH_INDEX, true);
+        hashMap.put(KEY_EXTERNAL_DATA_MEMORY_ROWS,  "5000");
+        hashMap.put(KEY_INSTANCE_WRITE_DURABILITY,  "balanced");
         hashMap.put(KEY_COMPLETED_DEFAULT,          true);
         hashMap.put(KEY_MAP_SDK,                    "google_maps");
         hashMap.put(KEY_MAP_BASEMAP,                "streets");
         hashMap.put(KEY_AUTOSEND,                   "off");
+        hashMap.put(KEY_FORM_CACHE_SIZE,            "100");
+        hashMap.put(KEY_PERFORMANCE_LOG,            false);
         return hashMap;
     }
 
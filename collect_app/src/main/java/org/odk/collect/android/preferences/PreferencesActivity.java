@@ -64,6 +64,8 @@ public class PreferencesActivity extends PreferenceActivity {
             if (hasAtleastOneSettingEnabled(AdminKeys.identityKeys)) {
                 loadHeadersFromResource(R.xml.user_device_identity_preference_header, target);
             }
+
+            loadHeadersFromResource(R.xml.developer_preference_headers, target);
         }
     }
 
@@ -23,7 +23,10 @@ import android.os.AsyncTask;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.database.FileHashIndex;
 import org.odk.collect.android.listeners.DiskSyncListener;
+import org.odk.collect.android.logic.FormCacheManager;
+import org.odk.collect.android.logic.FormDefCompiler;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.UrlUtils;
@@ -169,6 +172,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             Collect.getInstance().getContentResolver()
                                     .update(updateUri, values, null, null);
                     Timber.i("[%d] %d records successfully updated", instance, count);
+                    FormDefCompiler.getInstance().compile(formDefFile);
                 }
                 uriToUpdate.clear();
 
@@ -207,11 +211,17 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                         // insert failures are OK and expected if multiple
                         // DiskSync scanners are active.
                         formsDao.saveForm(values);
+                        FormDefCompiler.getInstance().compile(formDefFile);
                     } catch (SQLException e) {
                         Timber.i("[%d] %s", instance, e.toString());
                     }
                 }
             }
+            // forget the hashes of forms that were deleted from the sdcard
+            FileHashIndex.getInstance().removeMissingFiles();
+            // drop caches of forms that were removed or replaced
+            FormCacheManager.getInstance().trim();
+
             if (errors.length() != 0) {
                 statusMessage = errors.toString();
             } else {
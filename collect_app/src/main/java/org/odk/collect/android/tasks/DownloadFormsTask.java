@@ -24,8 +24,11 @@ import org.kxml2.kdom.Element;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.exception.TaskCancelledException;
+import org.odk.collect.android.external.ExternalDataImporter;
 import org.odk.collect.android.listeners.FormDownloaderListener;
+import org.odk.collect.android.logic.FormDefCompiler;
 import org.odk.collect.android.logic.FormDetails;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.DocumentFetchResult;
@@ -167,7 +170,11 @@ public class DownloadFormsTask extends
                     if (tempMediaPath != null) {
                         File formMediaPath = new File(uriResult.getMediaPath());
                         FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
+                        importExternalData(formMediaPath);
                     }
+
+                    // build the form's cache now rather than when it is first opened
+                    FormDefCompiler.getInstance().compile(fileResult.getFile());
                 } catch (IOException e) {
                     Timber.e(e);
 
@@ -216,6 +223,21 @@ public class DownloadFormsTask extends
         }
     }
 
+    /**
+     * Imports the form's external data CSVs right away if the user asked for them to be imported
+     * at download time. A failure is only logged; the import is retried when the form is opened.
+     */
+    private void importExternalData(File formMediaPath) {
+        if (!ExternalDataImporter.IMPORT_ON_DOWNLOAD.equals(ExternalDataImporter.getImportMode())) {
+            return;
+        }
+        try {
+            ExternalDataImporter.getInstance().importAll(formMediaPath, null, null);
+        } catch (ExternalDataException e) {
+            Timber.e(e);
+        }
+    }
+
     private void saveResult(HashMap<FormDetails, String> result, FormDetails fd, String message) {
         if (message.equalsIgnoreCase("")) {
             message = Collect.getInstance().getString(R.string.success);
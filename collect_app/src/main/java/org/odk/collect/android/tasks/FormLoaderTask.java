@@ -16,6 +16,7 @@ package org.odk.collect.android.tasks;
 
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.os.AsyncTask;
 
 import org.apache.commons.io.IOUtils;
@@ -36,30 +37,43 @@ import org.javarosa.xpath.XPathTypeMismatchException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.ItemsetDbAdapter;
+import org.odk.collect.android.database.ItemsetImporter;
 import org.odk.collect.android.external.ExternalAnswerResolver;
 import org.odk.collect.android.external.ExternalDataHandler;
+import org.odk.collect.android.external.ExternalDataImporter;
+import org.odk.collect.android.external.ExternalDataIndexer;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataManagerImpl;
-import org.odk.collect.android.external.ExternalDataReader;
-import org.odk.collect.android.external.ExternalDataReaderImpl;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
+import org.odk.collect.android.logic.FormCacheManager;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormDefCompiler;
+import org.odk.collect.android.logic.FormDefPool;
+import org.odk.collect.android.logic.InstanceStreamReader;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.PhaseTimer;
 import org.odk.collect.android.utilities.ZipUtils;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
@@ -73,6 +87,9 @@ import timber.log.Timber;
 public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper> {
     private static final String ITEMSETS_CSV = "itemsets.csv";
 
+    // one thread per media preparation stage
+    private static final int PIPELINE_THREADS = 3;
+
     private FormLoaderListener stateListener;
     private String errorMsg;
     private String instancePath;
@@ -83,6 +100,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     private int resultCode = 0;
     private Intent intent = null;
     private ExternalDataManager externalDataManager;
+    private volatile ExternalDataIndexer externalDataIndexer;
+    private ExecutorService pipeline;
+    private final PhaseTimer timer = new PhaseTimer(PhaseTimer.LOAD);
 
     protected class FECWrapper {
         FormController controller;
@@ -121,15 +141,81 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      */
     @Override
     protected FECWrapper doInBackground(String... path) {
+        pipeline = Executors.newFixedThreadPool(PIPELINE_THREADS);
+        try {
+            return loadForm(path[0]);
+        } finally {
+            // stages still running after an error or a cancel are left to complete so that no
+            // import is interrupted half way. They are waited for so that their timings are
+            // reported, and so that opening the form again right away doesn't import the same
+            // CSVs alongside them, since the next task only starts once this one returns.
+            pipeline.shutdown();
+            awaitPipeline();
+            timer.finish();
+        }
+    }
+
+    /**
+     * Waits for every stage of the pipeline to end, even if this task is cancelled meanwhile. The
+     * stages check {@link #isCancelled()} themselves, so they end soon after a cancel.
+     */
+    private void awaitPipeline() {
+        boolean interrupted = false;
+        while (!pipeline.isTerminated()) {
+            try {
+                pipeline.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FECWrapper loadForm(String formPath) {
         FormDef fd = null;
         FileInputStream fis = null;
         errorMsg = null;
 
-        String formPath = path[0];
-
         File formXml = new File(formPath);
+        long stageStart = System.currentTimeMillis();
         String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+        File formBin = FormCacheManager.getFormDefFile(formHash);
+        timer.record("hash form", stageStart, formXml.length());
+
+        // set paths to /sdcard/odk/forms/formfilename-media/
+        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
+        final File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
+        final File formDefinition = formXml;
+
+        // Preparing the media folder does not need the FormDef, so it runs alongside loading it.
+        // Zips go first since they may contain CSVs, then external data and itemsets are imported
+        // in parallel.
+        final Future<Void> unzipStage = pipeline.submit(new Stage("unzip media") {
+            @Override
+            void run() {
+                unzipMediaFiles(formMediaDir);
+            }
+        });
+        Future<Void> externalDataStage = pipeline.submit(new Stage("import external data") {
+            @Override
+            void run() throws Exception {
+                unzipStage.get();
+                readLookups(formDefinition, formMediaDir);
+                importExternalData(formMediaDir);
+            }
+        });
+        Future<Void> itemsetsStage = pipeline.submit(new Stage("refresh itemsets") {
+            @Override
+            void run() throws Exception {
+                unzipStage.get();
+                refreshItemsets(formMediaDir);
+            }
+        });
+
+        // if the form is being compiled in the background, let that finish and use its cache
+        FormDefCompiler.getInstance().awaitCompilation(formPath);
 
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
@@ -143,7 +229,15 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         //      }
         //    });
 
-        if (formBin.exists()) {
+        stageStart = System.currentTimeMillis();
+        FormCacheManager formCacheManager = FormCacheManager.getInstance();
+        FormDefPool formDefPool = FormDefPool.getInstance();
+        fd = formDefPool.take(formHash);
+        if (fd != null) {
+            formCacheManager.recordHit(formBin);
+            Timber.i("Loaded %s from the form pool (hits: %d, misses: %d)", formXml.getName(),
+                    formDefPool.getHitCount(), formDefPool.getMissCount());
+        } else if (formBin.exists()) {
             // if we have binary, deserialize binary
             Timber.i("Attempting to load %s from cached file: %s",
                     formXml.getName(), formBin.getAbsolutePath());
@@ -155,9 +249,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 Timber.w("Deserialization FAILED!  Deleting cache file: %s",
                         formBin.getAbsolutePath());
                 formBin.delete();
+            } else {
+                formCacheManager.recordHit(formBin);
+                formDefPool.offer(formHash, formBin);
             }
         }
         if (fd == null) {
+            formCacheManager.recordMiss();
             // no binary, read from xml
             try {
                 Timber.i("Attempting to load from: %s", formXml.getAbsolutePath());
@@ -166,7 +264,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 if (fd == null) {
                     errorMsg = "Error reading XForm file";
                 } else {
-                    serializeFormDef(fd, formPath);
+                    serializeFormDef(fd, formBin);
+                    formDefPool.offer(formHash, formBin);
                 }
             } catch (Exception e) {
                 Timber.e(e);
@@ -175,30 +274,25 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 IOUtils.closeQuietly(fis);
             }
         }
+        timer.record("load form definition", stageStart,
+                formBin.exists() ? formBin.length() : formXml.length());
 
-        if (errorMsg != null || fd == null) {
+        if (errorMsg != null || fd == null || isCancelled()) {
             return null;
         }
 
-        // set paths to /sdcard/odk/forms/formfilename-media/
-        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
-        File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
+        // the instance may pull data from the external CSVs
+        if (!awaitStage(externalDataStage)) {
+            return null;
+        }
 
-        externalDataManager = new ExternalDataManagerImpl(formMediaDir);
+        externalDataManager = new ExternalDataManagerImpl(formMediaDir, externalDataIndexer);
 
         // add external data function handlers
         ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
                 externalDataManager);
         fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
 
-        try {
-            loadExternalData(formMediaDir);
-        } catch (Exception e) {
-            Timber.e(e, "Exception thrown while loading external data");
-            errorMsg = e.getMessage();
-            return null;
-        }
-
         if (isCancelled()) {
             // that means that the user has cancelled, so no need to go further
             return null;
@@ -209,7 +303,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         FormEntryController fec = new FormEntryController(fem);
 
         boolean usedSavepoint = false;
+        long instanceBytes = -1;
 
+        stageStart = System.currentTimeMillis();
         try {
             // import existing data into formdef
             if (instancePath != null) {
@@ -224,6 +320,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                     Timber.w("Loading instance from shadow file: %s", shadowInstance.getAbsolutePath());
                 }
                 if (instance.exists()) {
+                    instanceBytes = instance.length();
                     // This order is important. Import data, then initialize.
                     try {
                         importData(instance, fec);
@@ -266,45 +363,15 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 return null;
             }
         }
+        timer.record("initialize instance", stageStart, instanceBytes);
+        timer.setForm(fd);
+        timer.setInstance(instancePath);
 
         // Remove previous forms
         ReferenceManager._().clearSession();
 
-        // for itemsets.csv, we only check to see if the itemset file has been
-        // updated
-        File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
-        String csvmd5 = null;
-        if (csv.exists()) {
-            csvmd5 = FileUtils.getMd5Hash(csv);
-            boolean readFile = false;
-            ItemsetDbAdapter ida = new ItemsetDbAdapter();
-            ida.open();
-            // get the database entry (if exists) for this itemsets.csv, based
-            // on the path
-            Cursor c = ida.getItemsets(csv.getAbsolutePath());
-            if (c != null) {
-                if (c.getCount() == 1) {
-                    c.moveToFirst(); // should be only one, ever, if any
-                    String oldmd5 = c.getString(c.getColumnIndex("hash"));
-                    if (oldmd5.equals(csvmd5)) {
-                        // they're equal, do nothing
-                    } else {
-                        // the csv has been updated, delete the old entries
-                        ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
-                                csv.getAbsolutePath());
-                        // and read the new
-                        readFile = true;
-                    }
-                } else {
-                    // new csv, add it
-                    readFile = true;
-                }
-                c.close();
-            }
-            ida.close();
-            if (readFile) {
-                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
-            }
+        if (!awaitStage(itemsetsStage)) {
+            return null;
         }
 
         // This should get moved to the Application Class
@@ -330,25 +397,83 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         formXml = null;
         formPath = null;
 
+        stageStart = System.currentTimeMillis();
         FormController fc = new FormController(formMediaDir, fec, instancePath == null ? null
                 : new File(instancePath));
+        List<String> xpaths = new ArrayList<String>();
         if (xpath != null) {
-            // we are resuming after having terminated -- set index to this
-            // position...
-            FormIndex idx = fc.getIndexFromXPath(xpath);
-            fc.jumpToIndex(idx);
+            xpaths.add(xpath);
         }
         if (waitingXPath != null) {
-            FormIndex idx = fc.getIndexFromXPath(waitingXPath);
-            fc.setIndexWaitingForData(idx);
+            xpaths.add(waitingXPath);
+        }
+        if (!xpaths.isEmpty()) {
+            // both positions are found in a single pass over the form
+            Map<String, FormIndex> indices = fc.getIndicesFromXPaths(xpaths);
+            if (xpath != null) {
+                // we are resuming after having terminated -- set index to this
+                // position...
+                fc.jumpToIndex(indices.get(xpath));
+            }
+            if (waitingXPath != null) {
+                fc.setIndexWaitingForData(indices.get(waitingXPath));
+            }
         }
+        timer.record("restore position", stageStart, -1);
         data = new FECWrapper(fc, usedSavepoint);
         return data;
 
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadExternalData(File mediaFolder) {
+    /**
+     * Waits for a pipeline stage to complete.
+     *
+     * @return false if the stage failed or the wait was interrupted by a cancel
+     */
+    private boolean awaitStage(Future<Void> stage) {
+        try {
+            stage.get();
+            return true;
+        } catch (InterruptedException e) {
+            Timber.w("Interrupted while waiting for the form to load");
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException) {
+                cause = cause.getCause();
+            }
+            Timber.e(cause, "Exception thrown while preparing the form media");
+            errorMsg = cause.getMessage();
+            return false;
+        }
+    }
+
+    /**
+     * A step of the form loading pipeline that reports how long it took.
+     */
+    private abstract class Stage implements Callable<Void> {
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        abstract void run() throws Exception;
+
+        @Override
+        public Void call() throws Exception {
+            long start = System.currentTimeMillis();
+            try {
+                run();
+            } finally {
+                timer.record(name, start, -1);
+            }
+            return null;
+        }
+    }
+
+    private void unzipMediaFiles(File mediaFolder) {
         // SCTO-594
         File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
@@ -366,33 +491,85 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 }
             }
         }
+    }
 
-        File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File file) {
-                String lowerCaseName = file.getName().toLowerCase(Locale.US);
-                return lowerCaseName.endsWith(".csv") && !lowerCaseName.equalsIgnoreCase(
-                        ITEMSETS_CSV);
+    private void importExternalData(File mediaFolder) {
+        if (!ExternalDataImporter.IMPORT_ON_OPEN.equals(ExternalDataImporter.getImportMode())) {
+            // calculations evaluate pulldata() as soon as the form opens, on the main thread, so
+            // those data sets are imported and indexed now, behind the progress dialog
+            ExternalDataIndexer indexer = externalDataIndexer;
+            if (indexer != null && !indexer.getPulledDataSets().isEmpty()) {
+                ExternalDataImporter.getInstance().importDataSets(mediaFolder,
+                        indexer.getPulledDataSets(), this, indexer);
             }
-        });
 
-        Map<String, File> externalDataMap = new HashMap<String, File>();
+            // the others are imported in the background and on demand. With IMPORT_ON_DOWNLOAD
+            // this only picks up CSVs that were added or changed since.
+            ExternalDataImporter.getInstance().prewarm(mediaFolder, indexer);
+            return;
+        }
 
-        if (csvFiles != null) {
+        if (ExternalDataImporter.getPendingCsvFiles(mediaFolder).length > 0) {
+            publishProgress(Collect.getInstance()
+                    .getString(R.string.survey_loading_reading_csv_message));
+        }
+        // also indexes the data sets that were imported before
+        ExternalDataImporter.getInstance().importAll(mediaFolder, this, externalDataIndexer);
+    }
 
-            for (File csvFile : csvFiles) {
-                String dataSetName = csvFile.getName().substring(0,
-                        csvFile.getName().lastIndexOf("."));
-                externalDataMap.put(dataSetName, csvFile);
+    /**
+     * Reads the form for the external data columns it looks rows up by, so that the data sets can
+     * be indexed for those lookups.
+     */
+    private void readLookups(File formXml, File mediaFolder) {
+        String[] dataSets = mediaFolder.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                String lowerCaseName = name.toLowerCase(Locale.US);
+                return !lowerCaseName.equals(ITEMSETS_CSV)
+                        && (lowerCaseName.endsWith(".csv") || lowerCaseName.endsWith(".db"));
             }
+        });
+        if (dataSets != null && dataSets.length > 0) {
+            externalDataIndexer = ExternalDataIndexer.readForm(formXml);
+        }
+    }
 
-            if (externalDataMap.size() > 0) {
-
-                publishProgress(Collect.getInstance()
-                        .getString(R.string.survey_loading_reading_csv_message));
-
-                ExternalDataReader externalDataReader = new ExternalDataReaderImpl(this);
-                externalDataReader.doImport(externalDataMap);
+    private void refreshItemsets(File formMediaDir) {
+        // for itemsets.csv, we only check to see if the itemset file has been
+        // updated
+        File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
+        String csvmd5 = null;
+        if (csv.exists()) {
+            csvmd5 = FileUtils.getMd5Hash(csv);
+            boolean readFile = false;
+            ItemsetDbAdapter ida = new ItemsetDbAdapter();
+            ida.open();
+            // get the database entry (if exists) for this itemsets.csv, based
+            // on the path
+            Cursor c = ida.getItemsets(csv.getAbsolutePath());
+            if (c != null) {
+                if (c.getCount() == 1) {
+                    c.moveToFirst(); // should be only one, ever, if any
+                    String oldmd5 = c.getString(c.getColumnIndex("hash"));
+                    if (oldmd5.equals(csvmd5)) {
+                        // they're equal, do nothing
+                    } else {
+                        // the csv has been updated, delete the old entries
+                        ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
+                                csv.getAbsolutePath());
+                        // and read the new
+                        readFile = true;
+                    }
+                } else {
+                    // new csv, add it
+                    readFile = true;
+                }
+                c.close();
+            }
+            ida.close();
+            if (readFile) {
+                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
             }
         }
     }
@@ -416,11 +593,15 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
 
-        // convert files into a byte array
-        byte[] fileBytes = FileUtils.getFileAsBytes(instanceFile);
-
         // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+        TreeElement savedRoot;
+        try {
+            savedRoot = InstanceStreamReader.read(instanceFile);
+        } catch (IOException | XmlPullParserException e) {
+            throw new RuntimeException("Unable to read " + instanceFile.getName(), e);
+        }
+        // the template is populated on a copy so that the form definition is left intact if the
+        // saved instance turns out to be unusable
         TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
         // weak check for matching forms
@@ -485,28 +666,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     }
 
     /**
-     * Write the FormDef to the file system as a binary blog.
-     *
-     * @param filepath path to the form file
+     * Write the FormDef to the given cache file unless it already exists.
      */
-    public void serializeFormDef(FormDef fd, String filepath) {
-        // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
-
-        // formdef does not exist, create one.
-        if (!formDef.exists()) {
-            FileOutputStream fos;
-            try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (IOException e) {
-                Timber.e(e);
-            }
-        }
+    private void serializeFormDef(FormDef fd, File formDef) {
+        FormDefCompiler.writeFormDef(fd, formDef);
     }
 
     @Override
@@ -584,43 +747,38 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     }
 
     private void readCSV(File csv, String formHash, String pathHash) {
-
-        CSVReader reader;
         ItemsetDbAdapter ida = new ItemsetDbAdapter();
         ida.open();
-        boolean withinTransaction = false;
-
+        boolean imported = false;
         try {
-            reader = new CSVReader(new FileReader(csv));
-
-            String[] nextLine;
-            String[] columnHeaders = null;
-            int lineNumber = 0;
-            while ((nextLine = reader.readNext()) != null) {
-                lineNumber++;
-                if (lineNumber == 1) {
-                    // first line of csv is column headers
-                    columnHeaders = nextLine;
-                    ida.createTable(formHash, pathHash, columnHeaders,
-                            csv.getAbsolutePath());
-                    continue;
-                }
-                // add the rest of the lines to the specified database
-                // nextLine[] is an array of values from the line
-                // System.out.println(nextLine[4] + "etc...");
-                if (lineNumber == 2) {
-                    // start a transaction for the inserts
-                    withinTransaction = true;
-                    ida.beginTransaction();
+            CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(csv),
+                    "UTF-8"));
+            try {
+                // first line of csv is column headers
+                String[] columnHeaders = reader.readNext();
+                if (columnHeaders != null) {
+                    long start = System.currentTimeMillis();
+                    ida.createTable(formHash, pathHash, columnHeaders, csv.getAbsolutePath());
+                    int rowCount = ida.importRows(pathHash, columnHeaders, reader,
+                            new ItemsetImporter.Listener() {
+                                @Override
+                                public boolean isCancelled() {
+                                    return FormLoaderTask.this.isCancelled();
+                                }
+                            });
+                    imported = !isCancelled();
+                    Timber.i("Read %d itemsets from %s in %d ms", rowCount, csv.getName(),
+                            System.currentTimeMillis() - start);
                 }
-                ida.addRow(pathHash, columnHeaders, nextLine);
-
+            } finally {
+                reader.close();
             }
-        } catch (IOException e) {
+        } catch (IOException | SQLException e) {
             Timber.e(e, "Exception thrown while reading csv file");
         } finally {
-            if (withinTransaction) {
-                ida.commit();
+            if (!imported) {
+                // drop what was read so that the csv is read again next time
+                ida.dropTable(pathHash, csv.getAbsolutePath());
             }
             ida.close();
         }
@@ -32,6 +32,7 @@ import org.odk.collect.android.preferences.PreferenceKeys;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.utilities.ApplicationConstants;
+import org.odk.collect.android.utilities.PhaseTimer;
 import org.odk.collect.android.utilities.ResponseMessageParser;
 import org.odk.collect.android.utilities.WebUtils;
 import org.opendatakit.httpclientandroidlib.Header;
@@ -527,8 +528,14 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                         Timber.i(e, "Error encoding URL for device id : %s", deviceId);
                     }
 
-                    if (!uploadOneSubmission(urlString, id, instance, toUpdate, localContext,
-                            uriRemap, outcome)) {
+                    PhaseTimer timer = new PhaseTimer(PhaseTimer.UPLOAD);
+                    timer.setFormId(c.getString(c.getColumnIndex(InstanceColumns.JR_FORM_ID)));
+                    timer.setInstance(instance);
+                    boolean uploaded = uploadOneSubmission(urlString, id, instance, toUpdate,
+                            localContext, uriRemap, outcome);
+                    timer.mark("upload submission", getSubmissionSize(instance));
+                    timer.finish();
+                    if (!uploaded) {
                         return false; // get credentials...
                     }
                 }
@@ -542,6 +549,20 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         return true;
     }
 
+    /**
+     * @return the total size of the files in the instance folder
+     */
+    private static long getSubmissionSize(String instanceFilePath) {
+        File[] files = new File(instanceFilePath).getParentFile().listFiles();
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
     protected Outcome doInBackground(Long... values) {
         Outcome outcome = new Outcome();
         int counter = 0;
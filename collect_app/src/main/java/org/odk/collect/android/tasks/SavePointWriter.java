@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.SavePointListener;
+import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.utilities.AtomicFileWriter;
+import org.odk.collect.android.utilities.PhaseTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Writes the savepoints of the open form on a single background thread.
+ *
+ * Requests that arrive while one is waiting are folded into it, and a request only waits for
+ * {@link #DEBOUNCE_MS} so that swiping through several questions leads to one savepoint. When it
+ * is time to write, the instance is only serialized if its answers have changed since the last
+ * savepoint, which {@link FormController#getAnswerGeneration()} tells.
+ */
+public final class SavePointWriter {
+
+    static final long DEBOUNCE_MS = 1000;
+
+    private static final SavePointWriter INSTANCE = new SavePointWriter();
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "SavePointWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // the request waiting to be written, and who to tell if it fails
+    private ScheduledFuture<?> pending;
+    private SavePointListener listener;
+
+    // the instance the last savepoint is of, guarded by writeLock
+    private final Object writeLock = new Object();
+    private WeakReference<FormController> lastFormController =
+            new WeakReference<FormController>(null);
+    private long lastGeneration;
+
+    private final AtomicInteger requestedCount = new AtomicInteger();
+    private final AtomicInteger coalescedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger writtenCount = new AtomicInteger();
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            final SavePointListener listener;
+            synchronized (SavePointWriter.this) {
+                pending = null;
+                listener = SavePointWriter.this.listener;
+                SavePointWriter.this.listener = null;
+            }
+            final String errorMessage = writeIfChanged();
+            if (listener != null && errorMessage != null) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSavePointError(errorMessage);
+                    }
+                });
+            }
+        }
+    };
+
+    private SavePointWriter() {
+    }
+
+    public static SavePointWriter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Writes a savepoint of the open form shortly, unless its answers have not changed by then.
+     */
+    public void request(SavePointListener listener) {
+        schedule(listener, DEBOUNCE_MS);
+    }
+
+    /**
+     * Writes a savepoint of the open form as soon as possible, e.g. because the app is going into
+     * the background.
+     */
+    public void requestNow(SavePointListener listener) {
+        schedule(listener, 0);
+    }
+
+    private synchronized void schedule(SavePointListener listener, long delayMs) {
+        requestedCount.incrementAndGet();
+        this.listener = listener;
+        if (pending != null) {
+            coalescedCount.incrementAndGet();
+            if (delayMs > 0 || pending.getDelay(TimeUnit.MILLISECONDS) <= 0
+                    || !pending.cancel(false)) {
+                return;
+            }
+        }
+        pending = executor.schedule(write, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the waiting request, if any, and waits for a savepoint that is being written, because
+     * the instance has been saved or discarded and its savepoint is about to be deleted.
+     */
+    public void cancel(FormController formController) {
+        dropPending();
+        synchronized (writeLock) {
+            lastFormController = new WeakReference<FormController>(formController);
+            lastGeneration = formController.getAnswerGeneration();
+        }
+    }
+
+    /**
+     * Drops the waiting request, if any, and deletes the savepoint of the instance because it has
+     * been discarded. Does not wait for a savepoint that is being written: the savepoint is
+     * deleted on the background thread once that one is done.
+     */
+    public void discard(final FormController formController) {
+        dropPending();
+        final long generation = formController.getAnswerGeneration();
+        final File savepoint = SaveToDiskTask.savepointFile(formController.getInstancePath());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (writeLock) {
+                    lastFormController = new WeakReference<FormController>(formController);
+                    lastGeneration = generation;
+                }
+                if (savepoint.exists() && !savepoint.delete()) {
+                    Timber.w("Unable to delete %s", savepoint.getAbsolutePath());
+                }
+            }
+        });
+    }
+
+    private synchronized void dropPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        listener = null;
+    }
+
+    /**
+     * @return an error message, or null if the savepoint was written or did not have to be
+     */
+    private String writeIfChanged() {
+        synchronized (writeLock) {
+            final FormController formController = Collect.getInstance().getFormController();
+            if (formController == null) {
+                return null;
+            }
+            long generation = formController.getAnswerGeneration();
+            if (formController == lastFormController.get() && generation == lastGeneration) {
+                skippedCount.incrementAndGet();
+                return null;
+            }
+
+            long start = System.currentTimeMillis();
+            PhaseTimer timer = new PhaseTimer(PhaseTimer.SAVEPOINT);
+            try {
+                timer.setForm(formController.getFormDef());
+                timer.setInstance(formController.getInstancePath().getAbsolutePath());
+                File temp = SaveToDiskTask.savepointFile(formController.getInstancePath());
+                AtomicFileWriter.writeScratch(new AtomicFileWriter.Content() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        formController.writeFilledInFormXml(out);
+                    }
+                }, temp);
+                timer.mark("write savepoint", temp.length());
+
+                lastFormController = new WeakReference<FormController>(formController);
+                lastGeneration = generation;
+                writtenCount.incrementAndGet();
+                Timber.i("Savepoint ms: %d to %s (%d requested, %d coalesced, %d skipped, "
+                                + "%d written)", System.currentTimeMillis() - start, temp,
+                        requestedCount.get(), coalescedCount.get(), skippedCount.get(),
+                        writtenCount.get());
+                return null;
+            } catch (Exception e) {
+                Timber.e(e);
+                return e.getMessage();
+            } finally {
+                timer.finish();
+            }
+        }
+    }
+
+    /**
+     * @return the number of savepoints requested
+     */
+    public int getRequestedCount() {
+        return requestedCount.get();
+    }
+
+    /**
+     * @return the number of requests folded into one that was already waiting
+     */
+    public int getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return the number of savepoints not written because the answers had not changed
+     */
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public int getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Waits until the requests made so far have been written or skipped. A request waits at most
+     * {@link #DEBOUNCE_MS}, and the executor runs tasks that are due at the same time in order.
+     */
+    void awaitRequests() throws InterruptedException, ExecutionException {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, DEBOUNCE_MS, TimeUnit.MILLISECONDS).get();
+    }
+}
@@ -19,7 +19,6 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 
-import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
@@ -30,14 +29,15 @@ import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.AtomicFileWriter;
 import org.odk.collect.android.utilities.EncryptionUtils;
 import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.PhaseTimer;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 
 import timber.log.Timber;
 
@@ -54,6 +54,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     private Boolean markCompleted;
     private Uri uri;
     private String instanceName;
+    private final PhaseTimer timer = new PhaseTimer(PhaseTimer.SAVE);
 
     public static final int SAVED = 500;
     public static final int SAVE_ERROR = 501;
@@ -78,14 +79,25 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
      */
     @Override
     protected SaveResult doInBackground(Void... nothing) {
+        try {
+            return save();
+        } finally {
+            timer.finish();
+        }
+    }
+
+    private SaveResult save() {
         SaveResult saveResult = new SaveResult();
 
         FormController formController = Collect.getInstance().getFormController();
+        timer.setForm(formController.getFormDef());
+        timer.setInstance(formController.getInstancePath().getAbsolutePath());
 
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_validating_message));
 
         try {
             int validateStatus = formController.validateAnswers(markCompleted);
+            timer.mark("validate", -1);
             if (validateStatus != FormEntryController.ANSWER_OK) {
                 // validation failed, pass specific failure
                 saveResult.setSaveResult(validateStatus, markCompleted);
@@ -114,8 +126,10 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         Collect.getInstance().getActivityLogger().logInstanceAction(this, "save",
                 Boolean.toString(markCompleted));
 
-        // close all open databases of external data.
+        // release the databases of external data. They stay open for a while in case the form
+        // or the next one needs them again.
         Collect.getInstance().getExternalDataManager().close();
+        formController.getItemsetQueryCache().close();
 
         // if there is a meta/instanceName field, be sure we are using the latest value
         // just in case the validate somehow triggered an update.
@@ -127,7 +141,8 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         try {
             exportData(markCompleted);
 
-            // attempt to remove any scratch file
+            // attempt to remove any scratch file, once no savepoint is being written
+            SavePointWriter.getInstance().cancel(formController);
             File shadowInstance = savepointFile(formController.getInstancePath());
             if (shadowInstance.exists()) {
                 FileUtils.deleteAndReport(shadowInstance);
@@ -245,49 +260,74 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
      * other methods.
      */
     private void exportData(boolean markCompleted) throws IOException, EncryptionException {
-        FormController formController = Collect.getInstance().getFormController();
+        final FormController formController = Collect.getInstance().getFormController();
 
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_collecting_message));
 
-        ByteArrayPayload payload = formController.getFilledInFormXml();
-        // write out xml
-        String instancePath = formController.getInstancePath().getAbsolutePath();
+        timer.mark("prepare", -1);
 
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_saving_message));
 
-        exportXmlFile(payload, instancePath);
+        // write out xml, serializing it straight into the file
+        File instanceXml = formController.getInstancePath();
+        AtomicFileWriter.write(new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                formController.writeFilledInFormXml(out);
+            }
+        }, instanceXml);
+        timer.mark("write instance", instanceXml.length());
 
         // update the uri. We have exported the reloadable instance, so update status...
         // Since we saved a reloadable instance, it is flagged as re-openable so that if any error
         // occurs during the packaging of the data for the server fails (e.g., encryption),
         // we can still reopen the filled-out form and re-save it at a later time.
         updateInstanceDatabase(true, true);
+        timer.mark("update database", -1);
 
         if (markCompleted) {
             // now see if the packaging of the data for the server would make it
             // non-reopenable (e.g., encryption or send an SMS or other fraction of the form).
-            boolean canEditAfterCompleted = formController.isSubmissionEntireForm();
+            boolean isEntireForm = formController.isSubmissionEntireForm();
+            boolean canEditAfterCompleted = isEntireForm;
             boolean isEncrypted = false;
 
             // build a submission.xml to hold the data being submitted
             // and (if appropriate) encrypt the files on the side
 
             // pay attention to the ref attribute of the submission profile...
-            File instanceXml = formController.getInstancePath();
             File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
 
-            payload = formController.getSubmissionXml();
-
-            // write out submission.xml -- the data to actually submit to aggregate
-
-            publishProgress(
-                    Collect.getInstance().getString(R.string.survey_saving_finalizing_message));
-
-            exportXmlFile(payload, submissionXml.getAbsolutePath());
-
             // see if the form is encrypted and we can encrypt it...
             EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(uri,
                     formController.getSubmissionMetadata());
+
+            // write out submission.xml -- the data to actually submit to aggregate.
+            // If the entire form is submitted and stays unencrypted, that is the instanceXml
+            // just written, so no submission.xml is needed at all.
+            if (!isEntireForm || formInfo != null) {
+                publishProgress(
+                        Collect.getInstance().getString(R.string.survey_saving_finalizing_message));
+
+                if (isEntireForm) {
+                    // reuse the instanceXml rather than serializing the instance again
+                    String errorMessage = FileUtils.copyFile(instanceXml, submissionXml);
+                    if (errorMessage != null) {
+                        throw new IOException(errorMessage);
+                    }
+                    timer.mark("copy submission", submissionXml.length());
+                } else {
+                    // only the submitted subtree is serialized
+                    AtomicFileWriter.write(new AtomicFileWriter.Content() {
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            formController.writeSubmissionXml(out);
+                        }
+                    }, submissionXml);
+                    timer.mark("write submission", submissionXml.length());
+                }
+            }
+
             if (formInfo != null) {
                 // if we are encrypting, the form cannot be reopened afterward
                 canEditAfterCompleted = false;
@@ -298,6 +338,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
                 EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
                 isEncrypted = true;
+                timer.mark("encrypt", submissionXml.length());
             }
 
             // At this point, we have:
@@ -312,6 +353,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
             //    and remove the plaintext attachments if encrypting
 
             updateInstanceDatabase(false, canEditAfterCompleted);
+            timer.mark("mark complete", -1);
 
             if (!canEditAfterCompleted) {
                 // AT THIS POINT, there is no going back.  We are committed
@@ -339,10 +381,10 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
                     throw new IOException(msg);
                 }
             } else {
-                // try to delete the submissionXml file, since it is
-                // identical to the existing instanceXml file
-                // (we don't need to delete and rename anything).
-                if (!submissionXml.delete()) {
+                // no submissionXml file was written, since it would be
+                // identical to the existing instanceXml file, but one may
+                // be left over from a save that was interrupted.
+                if (submissionXml.exists() && !submissionXml.delete()) {
                     String msg = "Error deleting " + submissionXml.getAbsolutePath()
                             + " (instance is re-openable)";
                     Timber.w(msg);
@@ -359,51 +401,6 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         }
     }
 
-
-    /**
-     * This method actually writes the xml to disk.
-     */
-    static void exportXmlFile(ByteArrayPayload payload, String path) throws IOException {
-        File file = new File(path);
-        if (file.exists() && !file.delete()) {
-            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
-        }
-
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-        // try {
-        int read = is.read(data, 0, len);
-        if (read > 0) {
-            // write xml file
-            RandomAccessFile randomAccessFile = null;
-            try {
-                // String filename = path + File.separator +
-                // path.substring(path.lastIndexOf(File.separator) + 1) + ".xml";
-                randomAccessFile = new RandomAccessFile(file, "rws");
-                randomAccessFile.write(data);
-            } finally {
-                if (randomAccessFile != null) {
-                    try {
-                        randomAccessFile.close();
-                    } catch (IOException e) {
-                        Timber.e(e, "Error closing RandomAccessFile: %s", path);
-                    }
-                }
-            }
-        }
-        //        } catch (IOException e) {
-        //            Log.e(t, "Error reading from payload data stream");
-        //            e.printStackTrace();
-        //            return false;
-        //        }
-        //
-        //        return false;
-    }
-
     @Override
     protected void onProgressUpdate(String... values) {
         super.onProgressUpdate(values);
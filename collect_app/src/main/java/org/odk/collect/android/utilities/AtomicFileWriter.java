@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.preferences.PreferenceKeys;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Replaces a file with new contents so that a crash at any point leaves either the old or the new
+ * file, never a missing or truncated one.
+ *
+ * The contents are streamed to a hidden sibling of the file and renamed over it. Whether the
+ * sibling is synced to storage before the rename, which is what protects the file from a power
+ * loss rather than a crash of the app, depends on the durability preference:
+ * <ul>
+ * <li>{@link #DURABILITY_STRICT}: every file is synced, savepoints included.</li>
+ * <li>{@link #DURABILITY_BALANCED}: saved instances and submissions are synced, savepoints are
+ * not since the next one replaces them anyway.</li>
+ * <li>{@link #DURABILITY_FAST}: nothing is synced.</li>
+ * </ul>
+ */
+public final class AtomicFileWriter {
+
+    public static final String DURABILITY_STRICT = "strict";
+    public static final String DURABILITY_BALANCED = "balanced";
+    public static final String DURABILITY_FAST = "fast";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // a leading dot keeps the uploader from sending a sibling left behind by a crash
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_EXTENSION = ".partial";
+
+    /**
+     * Writes the contents of a file to a stream, e.g. by serializing a form instance into it.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private AtomicFileWriter() {
+    }
+
+    /**
+     * Writes an instance or submission that the user has saved.
+     */
+    public static void write(Content content, File target) throws IOException {
+        write(content, target, !DURABILITY_FAST.equals(getDurability()));
+    }
+
+    /**
+     * Writes a file that is written again soon anyway, such as a savepoint.
+     */
+    public static void writeScratch(Content content, File target) throws IOException {
+        write(content, target, DURABILITY_STRICT.equals(getDurability()));
+    }
+
+    static void write(Content content, File target, boolean sync) throws IOException {
+        File temp = getTempFile(target);
+        boolean written = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                OutputStream out = new BufferedOutputStream(fos, BUFFER_SIZE);
+                content.writeTo(out);
+                out.flush();
+                if (sync) {
+                    fos.getFD().sync();
+                }
+            } finally {
+                fos.close();
+            }
+            written = true;
+        } finally {
+            // the content may also fail with a runtime exception, e.g. from the serializer
+            if (!written && temp.exists() && !temp.delete()) {
+                Timber.w("Unable to delete %s", temp.getAbsolutePath());
+            }
+        }
+
+        if (!temp.renameTo(target)) {
+            // some file systems refuse to rename over an existing file
+            if (target.exists() && !target.delete()) {
+                temp.delete();
+                throw new IOException("Cannot overwrite " + target.getAbsolutePath()
+                        + ". Perhaps the file is locked?");
+            }
+            if (!temp.renameTo(target)) {
+                // the old contents are gone, so the new ones are kept where they are
+                throw new IOException("Cannot rename " + temp.getAbsolutePath() + " to "
+                        + target.getAbsolutePath() + ". The new contents are kept in "
+                        + temp.getAbsolutePath());
+            }
+        }
+    }
+
+    static File getTempFile(File target) {
+        return new File(target.getParentFile(), TEMP_PREFIX + target.getName() + TEMP_EXTENSION);
+    }
+
+    private static String getDurability() {
+        return (String) GeneralSharedPreferences.getInstance()
+                .get(PreferenceKeys.KEY_INSTANCE_WRITE_DURABILITY);
+    }
+}
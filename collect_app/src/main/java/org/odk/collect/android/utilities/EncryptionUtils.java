@@ -31,15 +31,16 @@ import org.odk.collect.android.logic.FormController.InstanceMetadata;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -52,6 +53,13 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -97,6 +105,20 @@ public class EncryptionUtils {
     private static final String NEW_LINE = "\n";
     private static final String ENCRYPTION_PROVIDER = "BC";
 
+    private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+    private static final int ENCRYPTION_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService ENCRYPTION_EXECUTOR =
+            Executors.newFixedThreadPool(ENCRYPTION_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EncryptionUtils");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private EncryptionUtils() {
     }
 
@@ -175,8 +197,11 @@ public class EncryptionUtils {
             elementSignatureSource.append(value).append("\n");
         }
 
-        public void appendFileSignatureSource(File file) {
-            String md5Hash = FileUtils.getMd5Hash(file);
+        /**
+         * @param md5Hash the hash of the exact bytes that were encrypted, rather than one from the
+         *                hash index
+         */
+        public void appendFileSignatureSource(File file, String md5Hash) {
             appendElementSignatureSource(file.getName() + "::" + md5Hash);
         }
 
@@ -395,53 +420,139 @@ public class EncryptionUtils {
                 pk, wrapper);
     }
 
-    private static void encryptFile(File file, EncryptedFormInformation formInfo)
-            throws IOException, EncryptionException {
-        File encryptedFile = new File(file.getParentFile(), file.getName()
-                + ".enc");
+    /**
+     * Encrypts each file into a file of the same name ending in .enc, next to it.
+     *
+     * Every file advances the IV of formInfo and adds its md5 hash to the signature, both of which
+     * the decrypting side expects in the order of the files. The ciphers are therefore taken, and
+     * the hashes appended, in that order on this thread, while the files themselves are encrypted
+     * in parallel. Each file is read once, hashing and encrypting it in the same pass.
+     *
+     * No .enc file is written after this returns, whether it succeeds or not.
+     */
+    static void encryptFiles(List<File> files, EncryptedFormInformation formInfo)
+            throws EncryptionException {
+        List<Future<String>> md5Hashes = new ArrayList<Future<String>>(files.size());
+        // cancelling a running task doesn't stop it, so the tasks check this before writing
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        try {
+            for (final File file : files) {
+                final Cipher cipher;
+                try {
+                    cipher = formInfo.getCipher();
+                } catch (InvalidKeyException | InvalidAlgorithmParameterException
+                        | NoSuchAlgorithmException | NoSuchPaddingException e) {
+                    String msg = "Error encrypting: " + file.getName();
+                    Timber.e(e, "%s due to %s ", msg, e.getMessage());
+                    throw new EncryptionException(msg, e);
+                }
+                md5Hashes.add(ENCRYPTION_EXECUTOR.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        if (abandoned.get()) {
+                            return null;
+                        }
+                        return encryptFile(file, cipher);
+                    }
+                }));
+            }
 
-        if (encryptedFile.exists() && !encryptedFile.delete()) {
-            throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
-                    + ". Perhaps the file is locked?");
+            // wait for every file, even once one has failed, so none is written after returning
+            EncryptionException failure = null;
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                try {
+                    String md5Hash = md5Hashes.get(i).get();
+                    formInfo.appendFileSignatureSource(file, md5Hash);
+                } catch (ExecutionException e) {
+                    String msg = "Error encrypting: " + file.getName() + " -> " + file.getName()
+                            + ".enc";
+                    Timber.e(e.getCause(), "%s due to %s ", msg, e.getCause().getMessage());
+                    if (failure == null) {
+                        failure = new EncryptionException(msg, e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncryptionException("Interrupted while encrypting", e);
+        } finally {
+            // skip the files that have not started, and wait for the others to be written
+            abandoned.set(true);
+            awaitQuietly(md5Hashes);
         }
+    }
 
-        // add elementSignatureSource for this file...
-        formInfo.appendFileSignatureSource(file);
+    private static void awaitQuietly(List<Future<String>> futures) {
+        boolean interrupted = false;
+        for (Future<String> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (ExecutionException e) {
+                    // already reported by encryptFiles, or not needed anymore
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
+    /**
+     * @return the md5 hash of the file, as it goes into the signature
+     */
+    private static String encryptFile(File file, final Cipher cipher)
+            throws IOException, NoSuchAlgorithmException {
+        File encryptedFile = new File(file.getParentFile(), file.getName() + ".enc");
+        final MessageDigest md = MessageDigest.getInstance("MD5");
+        final InputStream fin = new FileInputStream(file);
         try {
-            Cipher c = formInfo.getCipher();
-
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-            InputStream fin = new FileInputStream(file);
-            byte[] buffer = new byte[2048];
-            int len = fin.read(buffer);
-            while (len != -1) {
-                cipherOutputStream.write(buffer, 0, len);
-                len = fin.read(buffer);
-            }
-            fin.close();
-            cipherOutputStream.flush();
-            cipherOutputStream.close();
-
-            randomAccessFile.write(encryptedData.toByteArray());
-
-            Timber.i("Encrpyted:%s -> %s", file.getName(), encryptedFile.getName());
-        } catch (Exception e) {
-            String msg = "Error encrypting: " + file.getName() + " -> "
-                    + encryptedFile.getName();
-            Timber.e(e, "%s due to %s ", msg, e.getMessage());
-            throw new EncryptionException(msg, e);
+            AtomicFileWriter.write(new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(OutputStream encrypted) throws IOException {
+                    // closing the cipher stream writes the final block, but the file has to stay
+                    // open for the writer to sync it
+                    CipherOutputStream cipherOutputStream = new CipherOutputStream(
+                            new FilterOutputStream(encrypted) {
+                                @Override
+                                public void write(byte[] b, int off, int len) throws IOException {
+                                    out.write(b, off, len);
+                                }
+
+                                @Override
+                                public void close() throws IOException {
+                                    flush();
+                                }
+                            }, cipher);
+                    byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
+                    int len;
+                    while ((len = fin.read(buffer)) != -1) {
+                        md.update(buffer, 0, len);
+                        cipherOutputStream.write(buffer, 0, len);
+                    }
+                    cipherOutputStream.close();
+                }
+            }, encryptedFile);
         } finally {
-            IOUtils.closeQuietly(cipherOutputStream);
+            IOUtils.closeQuietly(fin);
+        }
 
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
-            }
+        Timber.i("Encrpyted:%s -> %s", file.getName(), encryptedFile.getName());
+
+        // zero-padded to 32 characters, as FileUtils.computeMd5Hash does
+        String md5 = new BigInteger(1, md.digest()).toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
         }
+        return md5;
     }
 
     public static boolean deletePlaintextFiles(File instanceXml) {
@@ -499,13 +610,10 @@ public class EncryptionUtils {
                 filesToProcess.add(f);
             }
         }
-        // encrypt here...
-        for (File f : filesToProcess) {
-            encryptFile(f, formInfo);
-        }
-
-        // encrypt the submission.xml as the last file...
-        encryptFile(submissionXml, formInfo);
+        // encrypt here, with the submission.xml as the last file...
+        List<File> filesToEncrypt = new ArrayList<File>(filesToProcess);
+        filesToEncrypt.add(submissionXml);
+        encryptFiles(filesToEncrypt, formInfo);
 
         return filesToProcess;
     }
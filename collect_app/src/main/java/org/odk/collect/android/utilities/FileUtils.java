@@ -24,6 +24,7 @@ import org.kxml2.kdom.Element;
 import org.kxml2.kdom.Node;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileHashIndex;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -57,6 +58,8 @@ public class FileUtils {
     public static final String SUBMISSIONURI = "submission";
     public static final String BASE64_RSA_PUBLIC_KEY = "base64RsaPublicKey";
 
+    private static final int MD5_BUFFER_SIZE = 64 * 1024;
+
     public static String getMimeType(String fileUrl)
             throws java.io.IOException {
         FileNameMap fileNameMap = URLConnection.getFileNameMap();
@@ -128,37 +131,29 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Returns the md5 hash of the file, served from the {@link FileHashIndex} when the file has not
+     * changed since it was last hashed.
+     */
     public static String getMd5Hash(File file) {
+        return FileHashIndex.getInstance().getMd5Hash(file);
+    }
+
+    /**
+     * Computes the md5 hash of the file by reading all of it. Use {@link #getMd5Hash(File)} unless
+     * the hash must reflect the exact bytes on disk at this moment.
+     */
+    public static String computeMd5Hash(File file) {
+        InputStream is = null;
         try {
             // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
             MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
-
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long llength = file.length();
-
-            if (llength > Integer.MAX_VALUE) {
-                Timber.e("File %s is too large", file.getName());
-                return null;
-            }
+            byte[] chunk = new byte[MD5_BUFFER_SIZE];
 
-            int length = (int) llength;
-
-            InputStream is = null;
             is = new FileInputStream(file);
-
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
-            }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                md.update(chunk, 0, read);
             }
             byte[] messageDigest = md.digest();
 
@@ -167,7 +162,6 @@ public class FileUtils {
             while (md5.length() < 32) {
                 md5 = "0" + md5;
             }
-            is.close();
             return md5;
 
         } catch (NoSuchAlgorithmException | IOException e) {
@@ -179,6 +173,8 @@ public class FileUtils {
                 Timber.e(e, "Problem reading file %s", file.getAbsolutePath());
             }
             return null;
+        } finally {
+            IOUtils.closeQuietly(is);
         }
     }
 
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.widget.TextView;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.logic.FormDefCompiler;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+
+import java.io.File;
+
+/**
+ * Form list adapter that additionally shows whether a form's binary cache has been built
+ * ("ready") or is still being compiled in the background ("preparing").
+ */
+public class FormCacheStatusCursorAdapter extends VersionHidingCursorAdapter {
+
+    private final Context ctxt;
+    private final ViewBinder versionBinder;
+
+    public FormCacheStatusCursorAdapter(String versionColumnName, Context context, int layout,
+            Cursor c, String[] from, int[] to) {
+        super(versionColumnName, context, layout, c, from, to);
+        ctxt = context;
+        versionBinder = getViewBinder();
+        setViewBinder(new ViewBinder() {
+
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (!cursor.getColumnName(columnIndex).equals(FormsColumns.JRCACHE_FILE_PATH)) {
+                    return versionBinder.setViewValue(view, cursor, columnIndex);
+                }
+
+                TextView v = (TextView) view;
+                String formPath = cursor.getString(
+                        cursor.getColumnIndex(FormsColumns.FORM_FILE_PATH));
+                String cachePath = cursor.getString(columnIndex);
+                if (formPath != null && FormDefCompiler.getInstance().isPending(formPath)) {
+                    v.setText(ctxt.getString(R.string.form_cache_preparing));
+                    v.setVisibility(View.VISIBLE);
+                } else if (cachePath != null && new File(cachePath).exists()) {
+                    v.setText(ctxt.getString(R.string.form_cache_ready));
+                    v.setVisibility(View.VISIBLE);
+                } else {
+                    v.setText(null);
+                    v.setVisibility(View.GONE);
+                }
+                return true;
+            }
+        });
+    }
+}
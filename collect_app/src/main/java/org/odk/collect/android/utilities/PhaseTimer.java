@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import org.javarosa.core.model.FormDef;
+import org.odk.collect.android.database.PerformanceLog;
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.preferences.PreferenceKeys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Times the phases of a single form load, save, savepoint or upload.
+ *
+ * Every phase is logged. When performance logging is enabled in the developer settings, the
+ * timings are also stored in the {@link PerformanceLog} once the operation finishes. Phases may
+ * be recorded from several threads.
+ */
+public class PhaseTimer {
+
+    public static final String LOAD = "load";
+    public static final String SAVE = "save";
+    public static final String SAVEPOINT = "savepoint";
+    public static final String UPLOAD = "upload";
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor();
+
+    private final String operation;
+    private final List<Timing> timings = new ArrayList<Timing>();
+    private String formId;
+    private String instance;
+    private long lastMark = System.currentTimeMillis();
+
+    public PhaseTimer(String operation) {
+        this.operation = operation;
+    }
+
+    public synchronized void setFormId(String formId) {
+        this.formId = formId;
+    }
+
+    /**
+     * Uses the id attribute of the form's main instance as the form id.
+     */
+    public void setForm(FormDef formDef) {
+        setFormId(formDef.getMainInstance().getRoot().getAttributeValue(null, "id"));
+    }
+
+    public synchronized void setInstance(String instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * Records a phase that ends now and began at the previous mark (or when the timer was
+     * created).
+     *
+     * @param bytes the amount of data the phase handled or -1 if not applicable
+     */
+    public synchronized void mark(String phase, long bytes) {
+        record(phase, lastMark, bytes);
+    }
+
+    /**
+     * Records a phase that ends now.
+     *
+     * @param start when the phase began, from {@link System#currentTimeMillis()}
+     * @param bytes the amount of data the phase handled or -1 if not applicable
+     */
+    public synchronized void record(String phase, long start, long bytes) {
+        long now = System.currentTimeMillis();
+        Timing timing = new Timing(now, operation, phase, now - start, bytes);
+        timings.add(timing);
+        lastMark = now;
+        Timber.i("%s phase '%s' took %d ms", operation, phase, timing.durationMs);
+    }
+
+    /**
+     * Stores the recorded phases, if performance logging is enabled.
+     */
+    public void finish() {
+        final List<Timing> finished;
+        synchronized (this) {
+            for (Timing timing : timings) {
+                timing.formId = formId;
+                timing.instance = instance;
+            }
+            finished = new ArrayList<Timing>(timings);
+            timings.clear();
+        }
+
+        if (finished.isEmpty() || !isEnabled()) {
+            return;
+        }
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PerformanceLog.getInstance().record(finished);
+                } catch (RuntimeException e) {
+                    Timber.e(e, "Unable to store %s timings", operation);
+                }
+            }
+        });
+    }
+
+    private static boolean isEnabled() {
+        return (Boolean) GeneralSharedPreferences.getInstance()
+                .get(PreferenceKeys.KEY_PERFORMANCE_LOG);
+    }
+
+    public static class Timing {
+        public final long timestamp;
+        public final String operation;
+        public final String phase;
+        public final long durationMs;
+        public final long bytes;
+        public String formId;
+        public String instance;
+
+        Timing(long timestamp, String operation, String phase, long durationMs, long bytes) {
+            this.timestamp = timestamp;
+            this.operation = operation;
+            this.phase = phase;
+            this.durationMs = durationMs;
+            this.bytes = bytes;
+        }
+    }
+}
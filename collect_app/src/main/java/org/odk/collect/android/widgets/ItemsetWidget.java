@@ -15,7 +15,6 @@
 package org.odk.collect.android.widgets;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.BitmapFactory;
 import android.view.KeyEvent;
 import android.view.View;
@@ -27,26 +26,19 @@ import android.widget.RadioButton;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
-import org.javarosa.core.model.FormDef;
-import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
-import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.XPathNodeset;
-import org.javarosa.xpath.XPathParseTool;
-import org.javarosa.xpath.expr.XPathExpression;
-import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
+import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.ItemsetQueryCache;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-
-import timber.log.Timber;
+import java.util.List;
 
 /**
  * The most basic widget that allows for entry of any text.
@@ -91,226 +83,104 @@ public class ItemsetWidget extends QuestionWidget implements
         // itemset widget.
         String nodesetStr = prompt.getQuestion().getAdditionalAttribute(null, "query");
 
-        // isolate the string between between the [ ] characters
-        String queryString = nodesetStr.substring(nodesetStr.indexOf("[") + 1,
-                nodesetStr.lastIndexOf("]"));
-
-        StringBuilder selection = new StringBuilder();
-        // add the list name as the first argument, which will always be there
-        selection.append("list_name=?");
-
-        // check to see if there are any arguments
-        if (queryString.indexOf("=") != -1) {
-            selection.append(" and ");
-        }
-
-        // can't just split on 'and' or 'or' because they have different
-        // behavior, so loop through and break them off until we don't have any
-        // more
-        // must include the spaces in indexOf so we don't match words like
-        // "land"
-        int andIndex = -1;
-        int orIndex = -1;
-        ArrayList<String> arguments = new ArrayList<String>();
-        while ((andIndex = queryString.indexOf(" and ")) != -1
-                || (orIndex = queryString.indexOf(" or ")) != -1) {
-            if (andIndex != -1) {
-                String subString = queryString.substring(0, andIndex);
-                String[] pair = subString.split("=");
-                if (pair.length == 2) {
-                    selection.append(pair[0].trim() + "=? and ");
-                    arguments.add(pair[1].trim());
-                } else {
-                    // parse error
-                }
-                // move string forward to after " and "
-                queryString = queryString.substring(andIndex + 5, queryString.length());
-                andIndex = -1;
-            } else if (orIndex != -1) {
-                String subString = queryString.substring(0, orIndex);
-                String[] pair = subString.split("=");
-                if (pair.length == 2) {
-                    selection.append(pair[0].trim() + "=? or ");
-                    arguments.add(pair[1].trim());
-                } else {
-                    // parse error
-                }
+        // the query is compiled once per form, and its results are kept by the values of its
+        // arguments
+        FormController formController = Collect.getInstance().getFormController();
+        ItemsetQueryCache itemsetQueries = formController.getItemsetQueryCache();
+        ItemsetQueryCache.Plan plan = itemsetQueries.getPlan(nodesetStr);
 
-                // move string forward to after " or "
-                queryString = queryString.substring(orIndex + 4, queryString.length());
-                orIndex = -1;
-            }
-        }
-
-        // parse the last segment (or only segment if there are no 'and' or 'or'
-        // clauses
-        String[] pair = queryString.split("=");
-        if (pair.length == 2) {
-            selection.append(pair[0].trim() + "=?");
-            arguments.add(pair[1].trim());
-        }
-        if (pair.length == 1) {
-            // this is probably okay, because then you just list all items in
-            // the list
+        File itemsetFile = new File(
+                formController.getMediaFolder().getAbsolutePath() + "/itemsets.csv");
+        String[] selectionArgs = null;
+        if (plan.getParseError() != null) {
+            TextView error = new TextView(context);
+            error.setText(String.format(getContext().getString(R.string.parser_exception),
+                    plan.getParseError()));
+            addAnswerView(error);
         } else {
-            // parse error
+            // can't have any null arguments
+            selectionArgs = plan.evaluateArguments(formController.getFormDef(),
+                    prompt.getIndex().getReference());
         }
 
-        // +1 is for the list_name
-        String[] selectionArgs = new String[arguments.size() + 1];
-
-        // parse out the list name, between the ''
-        String listName = nodesetStr.substring(nodesetStr.indexOf("'") + 1,
-                nodesetStr.lastIndexOf("'"));
-
-
-        boolean nullArgs = false; // can't have any null arguments
-        selectionArgs[0] = listName; // first argument is always listname
-
-        // loop through the arguments, evaluate any expressions
-        // and build the query string for the DB
-        for (int i = 0; i < arguments.size(); i++) {
-            XPathExpression xpr = null;
-            try {
-                xpr = XPathParseTool.parseXPath(arguments.get(i));
-            } catch (XPathSyntaxException e) {
-                Timber.e(e);
-                TextView error = new TextView(context);
-                error.setText(String.format(getContext().getString(R.string.parser_exception), arguments.get(i)));
-                addAnswerView(error);
-                break;
+        if (selectionArgs == null) {
+            // we can't try to query with null values else it blows up
+            // so just leave the screen blank
+            // TODO: put an error?
+        } else if (itemsetFile.exists()) {
+            // try to get the label in the language of the form, if that doesn't exist, then
+            // just use label
+            String lang = "";
+            if (formController.getLanguages() != null
+                    && formController.getLanguages().length > 0) {
+                lang = formController.getLanguage();
             }
+            List<ItemsetQueryCache.Item> items = itemsetQueries.getItems(plan, itemsetFile,
+                    selectionArgs, lang);
+            for (int index = 0; index < items.size(); index++) {
+                String label = items.get(index).label;
+                // the actual value is stored in name
+                String val = items.get(index).value;
+                answers.put(label, val);
+
+                RadioButton rb = new RadioButton(context);
+
+                rb.setOnCheckedChangeListener(this);
+                rb.setOnClickListener(this);
+                rb.setTextSize(answerFontsize);
+                rb.setText(label);
+                rb.setTag(index);
+                rb.setId(QuestionWidget.newUniqueId());
+
+                buttons.add(rb);
+
+                // have to add it to the radiogroup before checking it,
+                // else it lets two buttons be checked...
+                if (currentAnswer != null
+                        && val.compareTo(currentAnswer) == 0) {
+                    rb.setChecked(true);
+                }
 
-            if (xpr != null) {
-                FormDef form = Collect.getInstance().getFormController().getFormDef();
-                TreeElement treeElement = form.getMainInstance().resolveReference(
-                        prompt.getIndex().getReference());
-                EvaluationContext ec = new EvaluationContext(form.getEvaluationContext(),
-                        treeElement.getRef());
-                Object value = xpr.eval(form.getMainInstance(), ec);
+                RelativeLayout.LayoutParams textParams =
+                        new RelativeLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
+                                LayoutParams.WRAP_CONTENT);
+                textParams.addRule(RelativeLayout.ALIGN_PARENT_LEFT);
+                textParams.addRule(RelativeLayout.ALIGN_PARENT_TOP);
+                textParams.addRule(RelativeLayout.ALIGN_PARENT_RIGHT);
+                textParams.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
+                RelativeLayout singleOptionLayout = new RelativeLayout(getContext());
+                singleOptionLayout.addView(rb, textParams);
+
+                if (this.autoAdvanceToNext) {
+                    ImageView rightArrow = new ImageView(getContext());
+                    rightArrow.setImageBitmap(
+                            BitmapFactory.decodeResource(getContext().getResources(),
+                            R.drawable.expander_ic_right));
+
+                    RelativeLayout.LayoutParams arrowParams =
+                            new RelativeLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
+                                    LayoutParams.WRAP_CONTENT);
+                    arrowParams.addRule(RelativeLayout.CENTER_VERTICAL);
+                    arrowParams.addRule(RelativeLayout.ALIGN_PARENT_RIGHT);
+                    singleOptionLayout.addView(rightArrow, arrowParams);
+                }
 
-                if (value == null) {
-                    nullArgs = true;
-                } else {
-                    if (value instanceof XPathNodeset) {
-                        XPathNodeset xpn = (XPathNodeset) value;
-                        value = xpn.getValAt(0);
-                    }
+                if (index < items.size() - 1) {
+                    // Last, add the dividing line (except for the last element)
+                    ImageView divider = new ImageView(getContext());
+                    divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
 
-                    selectionArgs[i + 1] = value.toString();
-                }
-            }
-        }
+                    RelativeLayout.LayoutParams dividerParams =
+                            new RelativeLayout.LayoutParams(LayoutParams.MATCH_PARENT,
+                                    LayoutParams.WRAP_CONTENT);
 
-        File itemsetFile = new File(
-                Collect.getInstance().getFormController().getMediaFolder().getAbsolutePath()
-                        + "/itemsets.csv");
-        if (nullArgs) {
-            // we can't try to query with null values else it blows up
-            // so just leave the screen blank
-            // TODO: put an error?
-        } else if (itemsetFile.exists()) {
-            ItemsetDbAdapter ida = new ItemsetDbAdapter();
-            ida.open();
-
-            // name of the itemset table for this form
-            String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath());
-            try {
-                Cursor c = ida.query(pathHash, selection.toString(), selectionArgs);
-                if (c != null) {
-                    c.move(-1);
-                    int index = 0;
-                    while (c.moveToNext()) {
-                        String label = "";
-                        String val = "";
-                        // try to get the value associated with the label:lang
-                        // string if that doen't exist, then just use label
-                        String lang = "";
-                        if (Collect.getInstance().getFormController().getLanguages() != null
-                                && Collect.getInstance().getFormController().getLanguages().length
-                                > 0) {
-                            lang = Collect.getInstance().getFormController().getLanguage();
-                        }
-
-                        // apparently you only need the double quotes in the
-                        // column name when creating the column with a :
-                        // included
-                        String labelLang = "label" + "::" + lang;
-                        int langCol = c.getColumnIndex(labelLang);
-                        if (langCol == -1) {
-                            label = c.getString(c.getColumnIndex("label"));
-                        } else {
-                            label = c.getString(c.getColumnIndex(labelLang));
-                        }
-
-                        // the actual value is stored in name
-                        val = c.getString(c.getColumnIndex("name"));
-                        answers.put(label, val);
-
-                        RadioButton rb = new RadioButton(context);
-
-                        rb.setOnCheckedChangeListener(this);
-                        rb.setOnClickListener(this);
-                        rb.setTextSize(answerFontsize);
-                        rb.setText(label);
-                        rb.setTag(index);
-                        rb.setId(QuestionWidget.newUniqueId());
-
-                        buttons.add(rb);
-
-                        // have to add it to the radiogroup before checking it,
-                        // else it lets two buttons be checked...
-                        if (currentAnswer != null
-                                && val.compareTo(currentAnswer) == 0) {
-                            rb.setChecked(true);
-                        }
-
-                        RelativeLayout.LayoutParams textParams =
-                                new RelativeLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
-                                        LayoutParams.WRAP_CONTENT);
-                        textParams.addRule(RelativeLayout.ALIGN_PARENT_LEFT);
-                        textParams.addRule(RelativeLayout.ALIGN_PARENT_TOP);
-                        textParams.addRule(RelativeLayout.ALIGN_PARENT_RIGHT);
-                        textParams.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
-                        RelativeLayout singleOptionLayout = new RelativeLayout(getContext());
-                        singleOptionLayout.addView(rb, textParams);
-
-                        if (this.autoAdvanceToNext) {
-                            ImageView rightArrow = new ImageView(getContext());
-                            rightArrow.setImageBitmap(
-                                    BitmapFactory.decodeResource(getContext().getResources(),
-                                    R.drawable.expander_ic_right));
-
-                            RelativeLayout.LayoutParams arrowParams =
-                                    new RelativeLayout.LayoutParams(LayoutParams.WRAP_CONTENT,
-                                            LayoutParams.WRAP_CONTENT);
-                            arrowParams.addRule(RelativeLayout.CENTER_VERTICAL);
-                            arrowParams.addRule(RelativeLayout.ALIGN_PARENT_RIGHT);
-                            singleOptionLayout.addView(rightArrow, arrowParams);
-                        }
-
-                        if (!c.isLast()) {
-                            // Last, add the dividing line (except for the last element)
-                            ImageView divider = new ImageView(getContext());
-                            divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
-
-                            RelativeLayout.LayoutParams dividerParams =
-                                    new RelativeLayout.LayoutParams(LayoutParams.MATCH_PARENT,
-                                            LayoutParams.WRAP_CONTENT);
-
-                            dividerParams.addRule(RelativeLayout.BELOW, rb.getId());
-                            singleOptionLayout.addView(divider, dividerParams);
-                        }
-
-                        allOptionsLayout.addView(singleOptionLayout);
-                        index++;
-                    }
-                    allOptionsLayout.setOrientation(LinearLayout.VERTICAL);
-                    c.close();
+                    dividerParams.addRule(RelativeLayout.BELOW, rb.getId());
+                    singleOptionLayout.addView(divider, dividerParams);
                 }
-            } finally {
-                ida.close();
+
+                allOptionsLayout.addView(singleOptionLayout);
             }
+            allOptionsLayout.setOrientation(LinearLayout.VERTICAL);
 
             addAnswerView(allOptionsLayout);
         } else {
@@ -18,8 +18,10 @@ import android.content.Context;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.TypedValue;
+import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
@@ -35,6 +37,7 @@ import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.listeners.AudioPlayListener;
@@ -56,6 +59,8 @@ import java.util.Locale;
 public class SelectOneSearchWidget extends QuestionWidget implements
         OnCheckedChangeListener, AudioPlayListener {
 
+    private static final int PAGE_SIZE = 100;
+
     List<SelectChoice> items; // may take a while to compute
     ArrayList<RadioButton> buttons;
     protected EditText searchStr;
@@ -63,6 +68,7 @@ public class SelectOneSearchWidget extends QuestionWidget implements
     protected LinearLayout buttonLayout;
     protected FormEntryPrompt prompt;
     protected Integer selectedTag = -1;
+    private OnLongClickListener longClickListener;
 
     public SelectOneSearchWidget(Context context, FormEntryPrompt prompt) {
         super(context, prompt);
@@ -124,45 +130,17 @@ public class SelectOneSearchWidget extends QuestionWidget implements
         }
 
         if (searchedItems != null && searchedItems.size() > 0) {
-            for (int i = 0; i < searchedItems.size(); i++) {
-                RadioButton r = new RadioButton(getContext());
-                r.setTextSize(TypedValue.COMPLEX_UNIT_DIP, answerFontsize);
-                r.setText(TextUtils.textToHtml(prompt.getSelectChoiceText(searchedItems.get(i))));
-
-                if (tagList == null) {
-                    r.setTag(Integer.valueOf(i));
-                } else {
-                    r.setTag(tagList.get(i));
-                }
-                r.setId(QuestionWidget.newUniqueId());
-                r.setEnabled(!prompt.isReadOnly());
-                r.setFocusable(!prompt.isReadOnly());
-
-                buttons.add(r);
-
-                if (selectedTag == -1 && searchedItems.get(i).getValue().equals(s)) {
-                    r.setChecked(true);
-                    selectedTag = (Integer) r.getTag();
-                } else if (selectedTag.equals(r.getTag())) {
-                    r.setChecked(true);
+            // the selected option is always shown, so that it stays the answer
+            int shown = Math.min(PAGE_SIZE, searchedItems.size());
+            for (int i = shown; i < searchedItems.size(); i++) {
+                Integer tag = tagList == null ? Integer.valueOf(i) : tagList.get(i);
+                if (selectedTag == -1 ? searchedItems.get(i).getValue().equals(s)
+                        : selectedTag.equals(tag)) {
+                    shown = i + 1;
+                    break;
                 }
-
-                r.setOnCheckedChangeListener(this);
-
-                MediaLayout mediaLayout = new MediaLayout(getContext(), player);
-                mediaLayout.setAVT(prompt.getIndex(), "." + Integer.toString(i), r, null, null,
-                        null, null);
-                mediaLayout.setPlayTextColor(playColor);
-                mediaLayout.setPlayTextBackgroundColor(playBackgroundColor);
-
-                if (i != searchedItems.size() - 1) {
-                    // Last, add the dividing line (except for the last element)
-                    ImageView divider = new ImageView(getContext());
-                    divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
-                    mediaLayout.addDivider(divider);
-                }
-                buttonLayout.addView(mediaLayout);
             }
+            addOptions(searchedItems, tagList, s, 0, shown);
         }
 
         buttonLayout.setOrientation(LinearLayout.VERTICAL);
@@ -175,6 +153,73 @@ public class SelectOneSearchWidget extends QuestionWidget implements
         addView(buttonLayout, params);
     }
 
+    /**
+     * Adds the buttons of the options from start to end, followed by a button for the next page
+     * if there are more options. A search of a large external data set can return many thousands
+     * of options, which would take long to lay out all at once.
+     */
+    private void addOptions(final List<SelectChoice> searchedItems, final List<Integer> tagList,
+            final String s, int start, final int end) {
+        for (int i = start; i < end; i++) {
+            RadioButton r = new RadioButton(getContext());
+            r.setTextSize(TypedValue.COMPLEX_UNIT_DIP, answerFontsize);
+            r.setText(TextUtils.textToHtml(prompt.getSelectChoiceText(searchedItems.get(i))));
+
+            if (tagList == null) {
+                r.setTag(Integer.valueOf(i));
+            } else {
+                r.setTag(tagList.get(i));
+            }
+            r.setId(QuestionWidget.newUniqueId());
+            r.setEnabled(!prompt.isReadOnly());
+            r.setFocusable(!prompt.isReadOnly());
+
+            buttons.add(r);
+
+            if (selectedTag == -1 && searchedItems.get(i).getValue().equals(s)) {
+                r.setChecked(true);
+                selectedTag = (Integer) r.getTag();
+            } else if (selectedTag.equals(r.getTag())) {
+                r.setChecked(true);
+            }
+
+            r.setOnCheckedChangeListener(this);
+            if (longClickListener != null) {
+                r.setOnLongClickListener(longClickListener);
+            }
+
+            MediaLayout mediaLayout = new MediaLayout(getContext(), player);
+            mediaLayout.setAVT(prompt.getIndex(), "." + Integer.toString(i), r, null, null,
+                    null, null);
+            mediaLayout.setPlayTextColor(playColor);
+            mediaLayout.setPlayTextBackgroundColor(playBackgroundColor);
+
+            if (i != searchedItems.size() - 1) {
+                // Last, add the dividing line (except for the last element)
+                ImageView divider = new ImageView(getContext());
+                divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
+                mediaLayout.addDivider(divider);
+            }
+            buttonLayout.addView(mediaLayout);
+        }
+
+        if (end < searchedItems.size()) {
+            final int nextEnd = Math.min(end + PAGE_SIZE, searchedItems.size());
+            final Button moreButton = new Button(getContext());
+            moreButton.setText(getContext().getString(R.string.show_more_options,
+                    searchedItems.size() - end));
+            moreButton.setTextSize(TypedValue.COMPLEX_UNIT_DIP, answerFontsize);
+            moreButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    buttonLayout.removeView(moreButton);
+                    addOptions(searchedItems, tagList, s, end, nextEnd);
+                }
+            });
+            buttonLayout.addView(moreButton);
+        }
+    }
+
 
     protected void setupChangeListener() {
         searchStr.addTextChangedListener(new TextWatcher() {
@@ -281,6 +326,7 @@ public class SelectOneSearchWidget extends QuestionWidget implements
 
     @Override
     public void setOnLongClickListener(OnLongClickListener l) {
+        longClickListener = l;
         for (RadioButton r : buttons) {
             r.setOnLongClickListener(l);
         }
@@ -0,0 +1,228 @@
+package org.odk.collect.android.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import au.com.bytecode.opencsv.CSVReader;
+import timber.log.Timber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the rows and indexes written by the itemset importer. It is only measured over a
+ * synthetic four-level cascade when the number of rows, e.g. 200000, is given with
+ * -Ditemsets.benchmark.rows=n.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ItemsetImporterTest {
+
+    private static final String TABLE = "itemset_test";
+    private static final String[] CASCADE_COLUMNS = {"list_name", "name", "label",
+        "label::French", "region", "district", "village"};
+    private static final int BENCHMARK_ROWS = Integer.getInteger("itemsets.benchmark.rows", 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() throws IOException {
+        db = SQLiteDatabase.openOrCreateDatabase(folder.newFile("itemsets.db"), null);
+        StringBuilder sql = new StringBuilder("CREATE TABLE " + TABLE
+                + " (_id integer primary key autoincrement");
+        for (String column : CASCADE_COLUMNS) {
+            sql.append(", \"").append(column).append("\" text");
+        }
+        db.execSQL(sql.append(")").toString());
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void insertsRowsLikeTheCsvReads() throws IOException {
+        File csv = writeCsv("list_name,name,label,label::French,region,district,village\n"
+                + "region,north,North,Nord,,,\n"
+                + "\n"
+                + "district,d1,District 1\n"
+                + "district,d2,Été,Été,north,,,extra\n");
+
+        assertEquals(3, insert(csv, false));
+
+        Cursor c = db.rawQuery("SELECT name, \"label::French\", region FROM " + TABLE
+                + " ORDER BY _id", null);
+        try {
+            assertEquals(3, c.getCount());
+            c.moveToNext();
+            assertEquals("Nord", c.getString(1));
+            assertEquals("", c.getString(2));
+            c.moveToNext();
+            assertEquals("d1", c.getString(0));
+            assertNull(c.getString(1));
+            c.moveToNext();
+            assertEquals("Été", c.getString(1));
+            assertEquals("north", c.getString(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void indexesTheFilterColumns() throws IOException {
+        insert(writeCsv("list_name,name,label,label::French,region,district,village\n"), false);
+
+        assertEquals(4, count("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' "
+                + "AND tbl_name = '" + TABLE + "'"));
+        assertTrue(queryPlan("list_name=? and region=?").contains("USING INDEX"));
+    }
+
+    @Test
+    public void stopsAfterTheBatchWhenCancelled() throws IOException {
+        File csv = writeCascade(ItemsetImporter.BATCH_SIZE * 2);
+
+        assertEquals(ItemsetImporter.BATCH_SIZE, insert(csv, true));
+        assertEquals(ItemsetImporter.BATCH_SIZE, count("SELECT COUNT(*) FROM " + TABLE));
+    }
+
+    @Test
+    public void benchmarkCascade() throws IOException {
+        assumeTrue(BENCHMARK_ROWS > 0);
+        File csv = writeCascade(BENCHMARK_ROWS);
+
+        long start = System.currentTimeMillis();
+        int rows = insert(csv, false);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Timber.i("Imported %d itemsets (%d KB) in %d ms: %d rows/s", rows, csv.length() / 1024,
+                elapsed, rows * 1000L / elapsed);
+        assertEquals(BENCHMARK_ROWS, rows);
+
+        // the last level of the cascade, as ItemsetWidget queries it
+        start = System.nanoTime();
+        int queries = 1000;
+        for (int i = 0; i < queries; i++) {
+            String village = "v" + (i * 37 % 20000);
+            Cursor c = db.query(true, TABLE, null, "list_name=? and village=?",
+                    new String[]{"household", village}, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    c.getString(c.getColumnIndex("label"));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Timber.i("Queried the households of %d villages in %d ms", queries,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private int insert(File csv, final boolean cancel) throws IOException {
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+        try {
+            String[] columns = reader.readNext();
+            return new ItemsetImporter(db, TABLE, columns).insertAll(reader,
+                    new ItemsetImporter.Listener() {
+                        @Override
+                        public boolean isCancelled() {
+                            return cancel;
+                        }
+                    });
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes 50 regions of 20 districts of 20 villages each, followed by as many households as
+     * it takes to reach the number of rows.
+     */
+    private File writeCascade(int rowCount) throws IOException {
+        File csv = folder.newFile("itemsets.csv");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv),
+                "UTF-8"));
+        try {
+            writer.write("list_name,name,label,label::French,region,district,village\n");
+            int rows = 0;
+            for (int i = 0; i < 50 && rows < rowCount; i++, rows++) {
+                writer.write("region,r" + i + ",Region " + i + ",Région " + i + ",,,\n");
+            }
+            for (int i = 0; i < 1000 && rows < rowCount; i++, rows++) {
+                writer.write("district,d" + i + ",District " + i + ",District " + i + ",r"
+                        + (i / 20) + ",,\n");
+            }
+            for (int i = 0; i < 20000 && rows < rowCount; i++, rows++) {
+                writer.write("village,v" + i + ",\"Village " + i + ", " + (i / 20) + "\",Village "
+                        + i + ",r" + (i / 400) + ",d" + (i / 20) + ",\n");
+            }
+            for (int i = 0; rows < rowCount; i++, rows++) {
+                int village = i % 20000;
+                writer.write("household,h" + i + ",Household " + i + ",Ménage " + i + ",r"
+                        + (village / 400) + ",d" + (village / 20) + ",v" + village + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+
+    private String queryPlan(String selection) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + TABLE + " WHERE "
+                + selection, new String[]{"region", "north"});
+        try {
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnCount() - 1));
+            }
+            return plan.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    private long count(String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private File writeCsv(String contents) throws IOException {
+        File csv = folder.newFile();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+}
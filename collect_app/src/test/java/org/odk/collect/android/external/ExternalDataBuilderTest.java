@@ -0,0 +1,145 @@
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.odk.collect.externaldata.ExternalDataBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the external data builder writes the same database as Collect's import of the same
+ * CSV, and that Collect uses it as it is.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ExternalDataBuilderTest {
+
+    // unsafe column names, a short row, an empty line and a column without a header
+    private static final String FACILITIES = "facility_key,Name,district name,,region_key\n"
+            + "F1,Health Centre 1,Central,ignored,R1\n"
+            + "\n"
+            + "F2,\"Clinic, North\"\n"
+            + "F3,Étoile,South,,R2\n";
+    private static final String SORTED = "name,sortby,code_key\n"
+            + "Last,20,c\n"
+            + "First,10.5,a\n"
+            + "Middle,15,b\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void buildsTheDatabaseCollectImports() throws IOException, SQLException {
+        assertSameDatabase(FACILITIES);
+    }
+
+    @Test
+    public void buildsTheDatabaseCollectImportsWithASortColumn()
+            throws IOException, SQLException {
+        assertSameDatabase(SORTED);
+    }
+
+    @Test
+    public void buildsADatabaseThatMatchesItsCsv() throws IOException, SQLException {
+        File csv = writeCsv("facilities.csv", FACILITIES);
+        File dbFile = new File(folder.getRoot(), "facilities.db");
+        new ExternalDataBuilder(csv, dbFile).build();
+
+        assertTrue(ExternalDataManifest.isCompatible(dbFile));
+        assertTrue(ExternalDataManifest.matches(dbFile, csv));
+    }
+
+    private void assertSameDatabase(String contents) throws IOException, SQLException {
+        File csv = writeCsv("dataset.csv", contents);
+        File built = new File(folder.getRoot(), "built.db");
+        new ExternalDataBuilder(csv, built).build();
+        File imported = new File(folder.getRoot(), "imported.db");
+        new ExternalSQLiteOpenHelper(imported).importFromCSV(csv,
+                new ExternalDataReaderImpl(null), null);
+
+        SQLiteDatabase expected = open(imported);
+        SQLiteDatabase actual = open(built);
+        try {
+            assertEquals(expected.getVersion(), actual.getVersion());
+            String schema = "SELECT type, name, tbl_name, sql FROM sqlite_master ORDER BY name";
+            assertEquals(query(expected, schema), query(actual, schema));
+            String rows = selectRows(expected);
+            assertEquals(query(expected, rows), query(actual, rows));
+            String source = "SELECT md5, header FROM import_source";
+            assertEquals(query(expected, source), query(actual, source));
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    /**
+     * @return a query of every row with the type of each value, in the order they were inserted
+     */
+    private static String selectRows(SQLiteDatabase db) {
+        StringBuilder columns = new StringBuilder();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                + ")", null);
+        try {
+            while (c.moveToNext()) {
+                columns.append(columns.length() == 0 ? "" : ", ").append("quote(")
+                        .append(c.getString(1)).append(")");
+            }
+        } finally {
+            c.close();
+        }
+        return "SELECT " + columns + " FROM " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                + " ORDER BY rowid";
+    }
+
+    private static List<String> query(SQLiteDatabase db, String sql) {
+        List<String> rows = new ArrayList<String>();
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    row.append(i == 0 ? "" : "|").append(c.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    private static SQLiteDatabase open(File dbFile) {
+        return SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+    }
+
+    private File writeCsv(String name, String contents) throws IOException {
+        File csv = new File(folder.getRoot(), name);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+}
@@ -0,0 +1,177 @@
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import au.com.bytecode.opencsv.CSVReader;
+import timber.log.Timber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the rows written by the bulk inserter. Its throughput over a synthetic CSV is only
+ * measured when the number of rows is given with -Dcsv.benchmark.rows=n.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ExternalDataBulkInserterTest {
+
+    private static final String TABLE = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME;
+    private static final int BENCHMARK_ROWS = Integer.getInteger("csv.benchmark.rows", 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() throws IOException {
+        db = SQLiteDatabase.openOrCreateDatabase(folder.newFile("data.db"), null);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void insertsRowsLikeTheCsvReads() throws IOException {
+        db.execSQL("CREATE TABLE " + TABLE + " (c_name text, c_district_key text, c_sortby real)");
+        File csv = writeCsv("name,district key,\n"
+                + "Alpha,1,ignored\n"
+                + "\n"
+                + "Beta\n"
+                + ",,\n"
+                + "Gamma,3,ignored,extra\n");
+
+        assertEquals(3, insert(csv, new String[]{"name", "district key", ""}));
+
+        Cursor c = db.rawQuery("SELECT c_name, c_district_key, c_sortby FROM " + TABLE
+                + " ORDER BY c_sortby", null);
+        try {
+            assertEquals(3, c.getCount());
+            c.moveToNext();
+            assertRow(c, "Alpha", "1", 1);
+            c.moveToNext();
+            assertRow(c, "Beta", "", 2);
+            c.moveToNext();
+            assertRow(c, "Gamma", "3", 3);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void usesTheSortColumnOfTheCsv() throws IOException {
+        db.execSQL("CREATE TABLE " + TABLE + " (c_name text, c_sortby real)");
+        File csv = writeCsv("name,sortby\nLast,20\nFirst,10.5\n");
+
+        insert(csv, new String[]{"name", "sortby"});
+
+        Cursor c = db.rawQuery("SELECT c_name, c_sortby FROM " + TABLE + " ORDER BY c_sortby",
+                null);
+        try {
+            c.moveToNext();
+            assertEquals("First", c.getString(0));
+            assertEquals(10.5, c.getDouble(1), 0);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void benchmarkRowsPerSecond() throws IOException {
+        assumeTrue(BENCHMARK_ROWS > 0);
+        db.execSQL("CREATE TABLE " + TABLE + " (c_facility_key text, c_name text, c_district text, "
+                + "c_latitude text, c_longitude text, c_sortby real)");
+        File csv = folder.newFile("facilities.csv");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv),
+                "UTF-8"));
+        try {
+            writer.write("facility_key,name,district,latitude,longitude\n");
+            for (int i = 0; i < BENCHMARK_ROWS; i++) {
+                writer.write("F" + i + ",\"Health Centre " + i + ", Block " + (i % 97) + "\",D"
+                        + (i % 250) + "," + (i % 90) + ".123456," + (i % 180) + ".654321\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        long start = System.currentTimeMillis();
+        int rows = insert(csv, new String[]{"facility_key", "name", "district", "latitude",
+                "longitude"});
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        Timber.i("Imported %d rows (%d KB) in %d ms: %d rows/s", rows, csv.length() / 1024,
+                elapsed, rows * 1000L / elapsed);
+        assertEquals(BENCHMARK_ROWS, rows);
+        assertEquals(BENCHMARK_ROWS, count());
+    }
+
+    private int insert(File csv, String[] headerRow) throws IOException {
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+        try {
+            reader.readNext();
+            return new ExternalDataBulkInserter(db, TABLE, headerRow).insertAll(reader,
+                    new ExternalDataBulkInserter.Listener() {
+                        @Override
+                        public boolean isCancelled() {
+                            return false;
+                        }
+
+                        @Override
+                        public void onProgress(int rowCount) {
+                        }
+                    });
+        } finally {
+            reader.close();
+        }
+    }
+
+    private long count() {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private File writeCsv(String contents) throws IOException {
+        File csv = folder.newFile();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+
+    private static void assertRow(Cursor c, String name, String district, double sortBy) {
+        assertEquals(name, c.getString(0));
+        assertEquals(district, c.getString(1));
+        assertEquals(sortBy, c.getDouble(2), 0);
+    }
+}
@@ -0,0 +1,105 @@
+package org.odk.collect.android.external;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that databases are shared while in use and only closed once they have been idle, or
+ * evicted and released.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ExternalDataConnectionPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExternalDataConnectionPool pool = ExternalDataConnectionPool.getInstance();
+
+    @After
+    public void tearDown() {
+        pool.evictIdle(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void sharesTheHelperOfADatabase() {
+        File dbFile = new File(folder.getRoot(), "cities.db");
+
+        ExternalSQLiteOpenHelper first = pool.acquire(dbFile);
+        ExternalSQLiteOpenHelper second = pool.acquire(new File(folder.getRoot(), "cities.db"));
+
+        assertSame(first, second);
+        assertEquals(1, pool.size());
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void keepsReleasedDatabasesUntilTheyHaveBeenIdle() {
+        File dbFile = new File(folder.getRoot(), "cities.db");
+        ExternalSQLiteOpenHelper helper = pool.acquire(dbFile);
+        ExternalSQLiteOpenHelper other = pool.acquire(new File(folder.getRoot(), "schools.db"));
+        pool.release(helper);
+
+        long now = SystemClock.elapsedRealtime();
+        pool.evictIdle(now + ExternalDataConnectionPool.IDLE_TIMEOUT_MS - 1);
+        assertEquals(2, pool.size());
+        assertSame(helper, pool.acquire(dbFile));
+        pool.release(helper);
+
+        pool.evictIdle(now + ExternalDataConnectionPool.IDLE_TIMEOUT_MS);
+        assertEquals(1, pool.size());
+        pool.release(other);
+    }
+
+    @Test
+    public void evictsDatabasesInUseBeforeTheyAreImported() {
+        File dbFile = new File(folder.getRoot(), "cities.db");
+        ExternalSQLiteOpenHelper helper = pool.acquire(dbFile);
+        ExternalSQLiteOpenHelper sharer = pool.acquire(dbFile);
+        SQLiteDatabase db = helper.getReadableDatabase();
+
+        pool.evict(dbFile);
+        ExternalSQLiteOpenHelper reopened = pool.acquire(dbFile);
+
+        // the forms that use the evicted database keep it open until the last one releases it
+        assertNotSame(helper, reopened);
+        pool.release(helper);
+        assertTrue(db.isOpen());
+        pool.release(sharer);
+        assertFalse(db.isOpen());
+
+        pool.release(reopened);
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void closesUnusedDatabasesWhenTheyAreEvicted() {
+        File dbFile = new File(folder.getRoot(), "cities.db");
+        ExternalSQLiteOpenHelper helper = pool.acquire(dbFile);
+        SQLiteDatabase db = helper.getReadableDatabase();
+        pool.release(helper);
+
+        pool.evict(dbFile);
+
+        assertFalse(db.isOpen());
+        assertEquals(0, pool.size());
+    }
+}
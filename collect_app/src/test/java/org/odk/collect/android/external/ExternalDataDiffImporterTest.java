@@ -0,0 +1,251 @@
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that applying the changes of a CSV leaves the same rows as importing it from scratch, and
+ * that the importer gives up whenever it could not.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ExternalDataDiffImporterTest {
+
+    private static final String TABLE = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME;
+    private static final String CITIES = "city_key,name,population\n"
+            + "1,Nairobi,4397073\n"
+            + "2,Mombasa,1208333\n"
+            + "3,Kisumu,610082\n"
+            + "4,Nakuru,570674\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appliesTheInsertsUpdatesAndDeletes() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES);
+        File dbFile = importFully(csv, "cities.db");
+        long nairobi = rowId(dbFile, "1");
+
+        writeCsv("cities.csv", "city_key,name,population\n"
+                + "1,Nairobi,4397073\n"
+                + "2,Mombasa,1300000\n"
+                + "4,Nakuru,570674\n"
+                + "5,Eldoret,475716\n");
+
+        assertTrue(ExternalDataDiffImporter.importChanges(dbFile, csv));
+        assertEquals(Arrays.asList("1|Nairobi|4397073|1.0", "2|Mombasa|1300000|2.0",
+                "4|Nakuru|570674|3.0", "5|Eldoret|475716|4.0"), rows(dbFile));
+        // the unchanged row is left where it is, and so is the index of the key
+        assertEquals(nairobi, rowId(dbFile, "1"));
+        assertEquals(1, queryLong(dbFile, "SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE type = 'index' AND name = 'city_key_idx'"));
+        assertTrue(ExternalDataManifest.matches(dbFile, csv));
+    }
+
+    @Test
+    public void skipsACsvThatHasNotChanged() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES);
+        new ExternalDataReaderImpl(null).doImport(Collections.singletonMap("cities", csv));
+        File dbFile = new File(folder.getRoot(), "cities.db");
+        execSQL(dbFile, "INSERT INTO " + TABLE + " VALUES ('9', 'Marker', '0', 9)");
+
+        csv = writeCsv("cities.csv", CITIES);
+        new ExternalDataReaderImpl(null).doImport(Collections.singletonMap("cities", csv));
+
+        assertFalse(csv.exists());
+        assertEquals(5, queryLong(dbFile, "SELECT COUNT(*) FROM " + TABLE));
+    }
+
+    @Test
+    public void fallsBackToAFullImportWhenTheHeaderChanges() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES);
+        File dbFile = importFully(csv, "cities.db");
+
+        writeCsv("cities.csv", "city_key,name,population,county\n1,Nairobi,4397073,47\n");
+
+        assertFalse(ExternalDataDiffImporter.importChanges(dbFile, csv));
+    }
+
+    @Test
+    public void fallsBackToAFullImportWhenTheStoredKeyIsNotUnique() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES + "4,Naivasha,181966\n");
+        File dbFile = importFully(csv, "cities.db");
+
+        writeCsv("cities.csv", CITIES);
+
+        assertFalse(ExternalDataDiffImporter.importChanges(dbFile, csv));
+    }
+
+    @Test
+    public void fallsBackToAFullImportWhenTheCsvKeyIsNotUnique() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES);
+        File dbFile = importFully(csv, "cities.db");
+        List<String> before = rows(dbFile);
+
+        writeCsv("cities.csv", "city_key,name,population\n"
+                + "1,Nairobi,4500000\n"
+                + "1,Naivasha,181966\n");
+
+        assertFalse(ExternalDataDiffImporter.importChanges(dbFile, csv));
+        // the changes made before the duplicate was found are rolled back
+        assertEquals(before, rows(dbFile));
+    }
+
+    @Test
+    public void generatesTheSortValuesOfAFullImport() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES);
+        File dbFile = importFully(csv, "cities.db");
+
+        String changed = "city_key,name,population\n"
+                + "5,Eldoret,475716\n"
+                + "1,Nairobi,4397073\n"
+                + "3,Kisumu,610082\n"
+                + "\n"
+                + "6,Thika,139853\n"
+                + "2,Mombasa,1208333\n";
+        writeCsv("cities.csv", changed);
+        assertTrue(ExternalDataDiffImporter.importChanges(dbFile, csv));
+
+        File fullCsv = writeCsv("full.csv", changed);
+        assertEquals(rows(importFully(fullCsv, "full.db")), rows(dbFile));
+    }
+
+    @Test
+    public void refreshesTheSearchIndex() throws IOException {
+        File csv = writeCsv("cities.csv", CITIES);
+        File dbFile = importFully(csv, "cities.db");
+        SQLiteDatabase db = open(dbFile);
+        try {
+            ExternalDataSearchIndex.build(db, "cities",
+                    new HashSet<String>(Collections.singletonList("c_name")));
+        } finally {
+            db.close();
+        }
+
+        writeCsv("cities.csv", CITIES.replace("Kisumu", "Kericho"));
+        assertTrue(ExternalDataDiffImporter.importChanges(dbFile, csv));
+
+        assertEquals(Collections.singletonList("3"), search(dbFile, "kericho"));
+        assertEquals(Collections.<String>emptyList(), search(dbFile, "kisumu"));
+    }
+
+    private File importFully(File csv, String dbName) {
+        File dbFile = new File(folder.getRoot(), dbName);
+        new ExternalSQLiteOpenHelper(dbFile).importFromCSV(csv, new ExternalDataReaderImpl(null),
+                null);
+        return dbFile;
+    }
+
+    /**
+     * @return the rows of the data set in the order of their sort values
+     */
+    private static List<String> rows(File dbFile) {
+        List<String> rows = new ArrayList<String>();
+        SQLiteDatabase db = open(dbFile);
+        try {
+            Cursor c = db.rawQuery("SELECT c_city_key, c_name, c_population, c_sortby FROM "
+                    + TABLE + " ORDER BY c_sortby", null);
+            try {
+                while (c.moveToNext()) {
+                    rows.add(c.getString(0) + "|" + c.getString(1) + "|" + c.getString(2) + "|"
+                            + c.getDouble(3));
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+        return rows;
+    }
+
+    private static List<String> search(File dbFile, String name) {
+        List<String> keys = new ArrayList<String>();
+        SQLiteDatabase db = open(dbFile);
+        try {
+            Cursor c = db.rawQuery("SELECT c_city_key FROM " + TABLE + " WHERE rowid IN "
+                    + "(SELECT docid FROM " + ExternalDataSearchIndex.TABLE_NAME + " WHERE "
+                    + ExternalDataSearchIndex.TABLE_NAME + " MATCH ?)",
+                    new String[]{"c_name:" + name});
+            try {
+                while (c.moveToNext()) {
+                    keys.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+        return keys;
+    }
+
+    private static long rowId(File dbFile, String key) {
+        return queryLong(dbFile, "SELECT rowid FROM " + TABLE + " WHERE c_city_key = '" + key
+                + "'");
+    }
+
+    private static long queryLong(File dbFile, String sql) {
+        SQLiteDatabase db = open(dbFile);
+        try {
+            Cursor c = db.rawQuery(sql, null);
+            try {
+                c.moveToFirst();
+                return c.getLong(0);
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void execSQL(File dbFile, String sql) {
+        SQLiteDatabase db = open(dbFile);
+        try {
+            db.execSQL(sql);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static SQLiteDatabase open(File dbFile) {
+        return SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    private File writeCsv(String name, String contents) throws IOException {
+        File csv = new File(folder.getRoot(), name);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+}
@@ -0,0 +1,115 @@
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the full-text index finds at least the rows that the LIKE of a search finds.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class ExternalDataSearchIndexTest {
+
+    private static final String TABLE = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME;
+    private static final List<String> NAME = Collections.singletonList("c_name");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() throws IOException {
+        db = SQLiteDatabase.openOrCreateDatabase(folder.newFile("data.db"), null);
+        db.execSQL("CREATE TABLE " + TABLE + " (c_name text collate nocase, "
+                + "c_district text collate nocase, c_sortby real)");
+        String[] names = {"New York", "new york city", "Newark", "York", "São Paulo", "N.Y."};
+        for (int i = 0; i < names.length; i++) {
+            db.execSQL("INSERT INTO " + TABLE + " VALUES (?, ?, ?)",
+                    new Object[]{names[i], "D" + i, i});
+        }
+        ExternalDataSearchIndex.build(db, "cities", new HashSet<String>(NAME));
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void buildsQueriesForWholeTokens() {
+        assertEquals("c_name:\"new yor*\"",
+                ExternalDataSearchIndex.toMatchQuery(NAME, "New Yor", true));
+        assertEquals("c_name:\"n y\" OR c_district:\"n y\"", ExternalDataSearchIndex.toMatchQuery(
+                Arrays.asList("c_name", "c_district"), "n.y.", false));
+        assertNull(ExternalDataSearchIndex.toMatchQuery(NAME, "new%", true));
+        assertNull(ExternalDataSearchIndex.toMatchQuery(NAME, " - ", true));
+    }
+
+    @Test
+    public void findsTheRowsOfStartsWith() {
+        for (String value : new String[]{"new", "New Y", "new york ", "york", "São", "n."}) {
+            assertEquals(value, like(value + "%"), match(value, true));
+        }
+    }
+
+    @Test
+    public void findsTheRowsOfMatches() {
+        for (String value : new String[]{"new york", "NEW YORK CITY", "york", "n.y."}) {
+            assertEquals(value, like(value), match(value, false));
+        }
+    }
+
+    @Test
+    public void extendsTheIndexToNewColumns() {
+        ExternalDataSearchIndex.build(db, "cities", new HashSet<String>(
+                Collections.singletonList("c_district")));
+        assertEquals(new HashSet<String>(Arrays.asList("c_name", "c_district")),
+                ExternalDataSearchIndex.getColumns(db));
+    }
+
+    private List<String> like(String pattern) {
+        return query("c_name LIKE ?", new String[]{pattern});
+    }
+
+    private List<String> match(String value, boolean prefix) {
+        return query("rowid IN (SELECT docid FROM " + ExternalDataSearchIndex.TABLE_NAME
+                + " WHERE " + ExternalDataSearchIndex.TABLE_NAME + " MATCH ?) AND c_name LIKE ?",
+                new String[]{ExternalDataSearchIndex.toMatchQuery(NAME, value, prefix),
+                        prefix ? value + "%" : value});
+    }
+
+    private List<String> query(String selection, String[] selectionArgs) {
+        List<String> names = new ArrayList<String>();
+        Cursor c = db.query(TABLE, new String[]{"c_name"}, selection, selectionArgs, null, null,
+                "c_sortby");
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,109 @@
+package org.odk.collect.android.external;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a data set held in memory answers lookups like its SQLite table would.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class InMemoryDataSetTest {
+
+    private static final String CSV = "name,district key,population,sortby\n"
+            + "Alpha,D1,100,3\n"
+            + "\n"
+            + "beta,d1,200,1\n"
+            + "Gamma,D2,,4\n"
+            + "Élan,D3,400,2\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pullsTheFirstRowWithTheValue() throws IOException {
+        InMemoryDataSet dataSet = InMemoryDataSet.load(writeCsv(CSV), 10);
+
+        assertEquals(4, dataSet.getRowCount());
+        assertEquals("Alpha", dataSet.pull("name", "district key", "d1"));
+        assertEquals("beta", dataSet.pull("name", "population", "200"));
+        assertEquals("", dataSet.pull("population", "name", "gamma"));
+        assertEquals("", dataSet.pull("name", "district key", "D4"));
+        assertEquals("", dataSet.pull("name", "missing", "D1"));
+    }
+
+    @Test
+    public void ignoresTheCaseOfAsciiLettersOnly() throws IOException {
+        InMemoryDataSet dataSet = InMemoryDataSet.load(writeCsv(CSV), 10);
+
+        assertEquals("D3", dataSet.pull("district key", "name", "Élan"));
+        assertEquals("D3", dataSet.pull("district key", "name", "ÉLAN"));
+        assertEquals("", dataSet.pull("district key", "name", "élan"));
+    }
+
+    @Test
+    public void ordersRowsByTheSortColumn() throws IOException {
+        InMemoryDataSet dataSet = InMemoryDataSet.load(writeCsv(CSV), 10);
+        int name = dataSet.getColumn("c_name");
+
+        int[] rows = dataSet.getSortedRows();
+        String[] names = new String[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            names[i] = dataSet.getValue(name, rows[i]);
+        }
+        assertArrayEquals(new String[]{"beta", "Élan", "Alpha", "Gamma"}, names);
+    }
+
+    @Test
+    public void refusesDataSetsWithTooManyRows() throws IOException {
+        File csv = writeCsv(CSV);
+
+        assertNull(InMemoryDataSet.load(csv, 3));
+        assertFalse(InMemoryDataSet.fits(csv, 3));
+        assertTrue(InMemoryDataSet.fits(csv, 5));
+        assertFalse(InMemoryDataSet.fits(csv, 0));
+    }
+
+    @Test
+    public void matchesLikeSqlite() {
+        assertTrue(InMemoryDataSet.like("New York", "%york%"));
+        assertTrue(InMemoryDataSet.like("New York", "new%"));
+        assertTrue(InMemoryDataSet.like("New York", "%RK"));
+        assertTrue(InMemoryDataSet.like("New York", "new york"));
+        assertTrue(InMemoryDataSet.like("New York", "N_w%k"));
+        assertTrue(InMemoryDataSet.like("", "%"));
+        assertTrue(InMemoryDataSet.like("aab", "%ab"));
+        assertFalse(InMemoryDataSet.like("New York", "york%"));
+        assertFalse(InMemoryDataSet.like("New York", "new"));
+        assertFalse(InMemoryDataSet.like("New York", "New York_"));
+        assertFalse(InMemoryDataSet.like("Élan", "élan"));
+    }
+
+    private File writeCsv(String contents) throws IOException {
+        File csv = folder.newFile();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+}
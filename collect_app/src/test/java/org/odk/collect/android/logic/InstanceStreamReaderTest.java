@@ -0,0 +1,166 @@
+package org.odk.collect.android.logic;
+
+import org.apache.commons.io.FileUtils;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.xform.parse.XFormParser;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the streaming instance reader builds the same tree as
+ * XFormParser.restoreDataModel. With -Dinstance.heap.benchmark=true it also compares the peak heap
+ * use of both ways of loading a saved instance.
+ */
+public class InstanceStreamReaderTest {
+
+    private static final int REPEATS = 3000;
+    private static final boolean HEAP_BENCHMARK = Boolean.getBoolean("instance.heap.benchmark");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File instance;
+
+    @Before
+    public void setUp() throws IOException {
+        StringBuilder geotrace = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            geotrace.append("-1.2345678 36.7654321 1650.0 5.0;");
+        }
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version='1.0' ?>\n<data id=\"household\" version=\"2017\" "
+                + "xmlns:orx=\"http://openrosa.org/xforms\">\n");
+        xml.append("  <name>  Fish &amp; Chips &lt;Ltd&gt; </name>\n");
+        xml.append("  <empty/>\n  <blank>   </blank>\n");
+        for (int i = 0; i < REPEATS; i++) {
+            xml.append("  <member>\n    <age>").append(i % 90).append("</age>\n")
+                    .append("    <details><note>member ").append(i).append("</note></details>\n")
+                    .append("    <trace>").append(geotrace).append("</trace>\n")
+                    .append("  </member>\n");
+        }
+        xml.append("  <orx:meta><orx:instanceID>uuid:1234</orx:instanceID></orx:meta>\n");
+        xml.append("</data>\n");
+
+        instance = folder.newFile("instance.xml");
+        FileUtils.writeStringToFile(instance, xml.toString(), "UTF-8");
+    }
+
+    @Test
+    public void readsTheSameTreeAsRestoreDataModel() throws Exception {
+        TreeElement expected = restoreDataModel(instance);
+        TreeElement actual = InstanceStreamReader.read(instance);
+
+        assertSameTree(expected, actual);
+        assertEquals("Fish & Chips <Ltd>", actual.getChild("name", 0).getValue().getValue());
+        assertNull(actual.getChild("blank", 0).getValue());
+        assertEquals(REPEATS - 1, actual.getChild("member", REPEATS - 1).getMult());
+    }
+
+    @Test
+    public void benchmarkPeakHeap() throws Exception {
+        assumeTrue(HEAP_BENCHMARK);
+
+        // importData also copies the template before populating it, which is done here to the
+        // restored tree so that both paths hold the saved tree and a copy of that size
+        long legacyPeak = measurePeakHeap(new Load() {
+            @Override
+            public Object run() throws Exception {
+                TreeElement saved = restoreDataModel(instance);
+                return new TreeElement[]{saved, saved.deepCopy(true)};
+            }
+        });
+        long streamingPeak = measurePeakHeap(new Load() {
+            @Override
+            public Object run() throws Exception {
+                TreeElement saved = InstanceStreamReader.read(instance);
+                return new TreeElement[]{saved, saved.deepCopy(true)};
+            }
+        });
+
+        Timber.i("Instance of %d KB: restoreDataModel and deepCopy peak %d KB, "
+                        + "InstanceStreamReader and deepCopy peak %d KB", instance.length() / 1024,
+                legacyPeak / 1024, streamingPeak / 1024);
+    }
+
+    private static TreeElement restoreDataModel(File file) throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(file);
+        return XFormParser.restoreDataModel(bytes, null).getRoot();
+    }
+
+    private static void assertSameTree(TreeElement expected, TreeElement actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getMult(), actual.getMult());
+        assertEquals(expected.getAttributeCount(), actual.getAttributeCount());
+        for (int i = 0; i < expected.getAttributeCount(); i++) {
+            assertEquals(expected.getAttributeName(i), actual.getAttributeName(i));
+            assertEquals(expected.getAttributeValue(i), actual.getAttributeValue(i));
+        }
+
+        if (expected.getValue() == null) {
+            assertNull(actual.getValue());
+        } else {
+            assertEquals(expected.getValue().getValue(), actual.getValue().getValue());
+        }
+
+        assertEquals(expected.getNumChildren(), actual.getNumChildren());
+        for (int i = 0; i < expected.getNumChildren(); i++) {
+            assertSameTree(expected.getChildAt(i), actual.getChildAt(i));
+        }
+    }
+
+    /**
+     * Samples the used heap while the instance is loaded. The result is kept reachable until the
+     * sampling stops, like the saved tree is while the template is populated.
+     */
+    private static long measurePeakHeap(Load load) throws Exception {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        final long baseline = runtime.totalMemory() - runtime.freeMemory();
+        final AtomicLong peak = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    sample(runtime, peak);
+                    Thread.yield();
+                }
+            }
+        });
+        sampler.start();
+        Object result = load.run();
+        sample(runtime, peak);
+        done.set(true);
+        sampler.join();
+        assertNotNull(result);
+        return peak.get() - baseline;
+    }
+
+    private static void sample(Runtime runtime, AtomicLong peak) {
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long previous = peak.get();
+        while (used > previous && !peak.compareAndSet(previous, used)) {
+            previous = peak.get();
+        }
+    }
+
+    private interface Load {
+        Object run() throws Exception;
+    }
+}
@@ -0,0 +1,69 @@
+package org.odk.collect.android.logic;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.IDataReference;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.services.transport.payload.ByteArrayPayload;
+import org.javarosa.model.xform.XFormSerializingVisitor;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xform.parse.XFormParser;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the streaming serializer writes the same bytes as JavaRosa's
+ * XFormSerializingVisitor.
+ */
+public class InstanceXmlSerializerTest {
+
+    private static final int REPEATS = 100;
+
+    private FormInstance instance;
+
+    @Before
+    public void setUp() throws IOException {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version='1.0' ?><data id=\"household\" version=\"2017\" "
+                + "xmlns:orx=\"http://openrosa.org/xforms\">");
+        xml.append("<name>Fish &amp; Chips &lt;Ltd&gt; \"é\"</name><empty/>");
+        for (int i = 0; i < REPEATS; i++) {
+            xml.append("<member><age>").append(i % 90).append("</age>")
+                    .append("<note kind=\"a&amp;b\">member ").append(i).append("</note>")
+                    .append("</member>");
+            // a later sibling of another name is still written after all the members
+            if (i == 0) {
+                xml.append("<head>yes</head>");
+            }
+        }
+        xml.append("<hidden>secret</hidden>");
+        xml.append("<orx:meta><orx:instanceID>uuid:1234</orx:instanceID></orx:meta>");
+        xml.append("</data>");
+
+        instance = XFormParser.restoreDataModel(xml.toString().getBytes("UTF-8"), null);
+        instance.getRoot().getChild("hidden", 0).setRelevant(false);
+    }
+
+    @Test
+    public void writesTheSameXmlAsTheSerializingVisitor() throws IOException {
+        assertSameXml(new XPathReference("/"));
+    }
+
+    @Test
+    public void writesTheSameSubmissionXmlAsTheSerializingVisitor() throws IOException {
+        assertSameXml(new XPathReference("/data/member"));
+    }
+
+    private void assertSameXml(IDataReference ref) throws IOException {
+        ByteArrayPayload expected = (ByteArrayPayload) new XFormSerializingVisitor()
+                .createSerializedPayload(instance, ref);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        InstanceXmlSerializer.write(instance, ref, actual);
+
+        assertArrayEquals(IOUtils.toByteArray(expected.getPayloadStream()), actual.toByteArray());
+    }
+}
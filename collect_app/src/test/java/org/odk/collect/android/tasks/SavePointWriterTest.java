@@ -0,0 +1,171 @@
+package org.odk.collect.android.tasks;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormController;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that savepoint requests are folded together, that unchanged answers are not written again
+ * and that a discarded savepoint stays deleted.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class SavePointWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // a singleton, so its counts are compared to what they were before each test
+    private final SavePointWriter writer = SavePointWriter.getInstance();
+    private StubFormController formController;
+    private File savepoint;
+
+    @Before
+    public void setUp() {
+        new File(Collect.CACHE_PATH).mkdirs();
+        File instance = new File(folder.getRoot(), "instance.xml");
+        formController = new StubFormController(instance);
+        Collect.getInstance().setFormController(formController);
+        savepoint = SaveToDiskTask.savepointFile(instance);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.awaitRequests();
+        Collect.getInstance().setFormController(null);
+        savepoint.delete();
+    }
+
+    @Test
+    public void writesABurstOfRequestsOnce() throws Exception {
+        int written = writer.getWrittenCount();
+        int coalesced = writer.getCoalescedCount();
+
+        for (int i = 0; i < 5; i++) {
+            writer.request(null);
+        }
+        writer.awaitRequests();
+
+        assertEquals(1, formController.writes.get());
+        assertEquals(written + 1, writer.getWrittenCount());
+        assertEquals(coalesced + 4, writer.getCoalescedCount());
+        assertTrue(savepoint.exists());
+    }
+
+    @Test
+    public void skipsAnswersThatHaveNotChanged() throws Exception {
+        writer.requestNow(null);
+        writer.awaitRequests();
+        int written = writer.getWrittenCount();
+        int skipped = writer.getSkippedCount();
+
+        writer.requestNow(null);
+        writer.awaitRequests();
+
+        assertEquals(1, formController.writes.get());
+        assertEquals(written, writer.getWrittenCount());
+        assertEquals(skipped + 1, writer.getSkippedCount());
+
+        formController.generation++;
+        writer.requestNow(null);
+        writer.awaitRequests();
+
+        assertEquals(2, formController.writes.get());
+        assertEquals(written + 1, writer.getWrittenCount());
+    }
+
+    @Test
+    public void writesRightAwayWhenARequestIsWaiting() throws Exception {
+        int coalesced = writer.getCoalescedCount();
+
+        writer.request(null);
+        writer.requestNow(null);
+
+        assertTrue(formController.writing.await(SavePointWriter.DEBOUNCE_MS / 2,
+                TimeUnit.MILLISECONDS));
+        writer.awaitRequests();
+        assertEquals(1, formController.writes.get());
+        assertEquals(coalesced + 1, writer.getCoalescedCount());
+    }
+
+    @Test
+    public void deletesTheSavepointAfterTheWriteInProgress() throws Exception {
+        formController.proceed = new CountDownLatch(1);
+        writer.requestNow(null);
+        assertTrue(formController.writing.await(5, TimeUnit.SECONDS));
+
+        // returns without waiting for the write
+        writer.discard(formController);
+        formController.proceed.countDown();
+        writer.awaitRequests();
+
+        assertEquals(1, formController.writes.get());
+        assertFalse(savepoint.exists());
+    }
+
+    /**
+     * Writes a fixed instance, and tells when it starts writing.
+     */
+    private static class StubFormController extends FormController {
+        private final FormDef formDef = new FormDef();
+        final AtomicInteger writes = new AtomicInteger();
+        final CountDownLatch writing = new CountDownLatch(1);
+        volatile long generation;
+        // if set, writes wait for it
+        volatile CountDownLatch proceed;
+
+        StubFormController(File instancePath) {
+            super(null, null, instancePath);
+            TreeElement root = new TreeElement("data");
+            root.setAttribute(null, "id", "savepoint");
+            formDef.setInstance(new FormInstance(root));
+        }
+
+        @Override
+        public FormDef getFormDef() {
+            return formDef;
+        }
+
+        @Override
+        public long getAnswerGeneration() {
+            return generation;
+        }
+
+        @Override
+        public void writeFilledInFormXml(OutputStream out) throws IOException {
+            writing.countDown();
+            if (proceed != null) {
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            writes.incrementAndGet();
+            out.write("<data id=\"savepoint\"/>".getBytes("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that a file is only replaced once its new contents are complete.
+ *
+ * With -Dinstance.benchmark.runs=n it also compares the time it takes to write instances of 1 to
+ * 20 MB, n times each, with the RandomAccessFile opened in "rws" mode that instances used to be
+ * written through.
+ */
+public class AtomicFileWriterTest {
+
+    private static final int[] BENCHMARK_MB = {1, 5, 20};
+    private static final int BENCHMARK_RUNS = Integer.getInteger("instance.benchmark.runs", 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replacesTheFile() throws IOException {
+        File target = folder.newFile("instance.xml");
+        write(target, "<data>old</data>".getBytes("UTF-8"));
+
+        byte[] contents = "<data>new</data>".getBytes("UTF-8");
+        AtomicFileWriter.write(content(contents), target, true);
+
+        assertArrayEquals(contents, read(target));
+        assertFalse(AtomicFileWriter.getTempFile(target).exists());
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void keepsTheOldFileWhenTheWriteFails() throws IOException {
+        File target = folder.newFile("instance.xml");
+        byte[] old = "<data>old</data>".getBytes("UTF-8");
+        write(target, old);
+
+        AtomicFileWriter.Content failing = new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(new byte[AtomicFileWriter.BUFFER_SIZE * 2]);
+                throw new IOException("Out of space");
+            }
+        };
+        try {
+            AtomicFileWriter.write(failing, target, true);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Out of space", e.getMessage());
+        }
+
+        assertArrayEquals(old, read(target));
+        assertFalse(AtomicFileWriter.getTempFile(target).exists());
+    }
+
+    @Test
+    public void benchmarkInstanceWrites() throws IOException {
+        assumeTrue(BENCHMARK_RUNS > 0);
+        for (int megabytes : BENCHMARK_MB) {
+            byte[] contents = new byte[megabytes * 1024 * 1024];
+            Arrays.fill(contents, (byte) 'x');
+            File target = new File(folder.getRoot(), megabytes + "mb.xml");
+
+            long rws = 0;
+            long synced = 0;
+            long unsynced = 0;
+            for (int i = 0; i < BENCHMARK_RUNS; i++) {
+                long start = System.nanoTime();
+                writeRws(contents, target);
+                rws += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                AtomicFileWriter.write(content(contents), target, true);
+                synced += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                AtomicFileWriter.write(content(contents), target, false);
+                unsynced += System.nanoTime() - start;
+            }
+            assertEquals(contents.length, target.length());
+
+            Timber.i("Wrote a %d MB instance in %d ms through RandomAccessFile(\"rws\"), "
+                    + "%d ms synced and renamed, %d ms renamed", megabytes,
+                    TimeUnit.NANOSECONDS.toMillis(rws / BENCHMARK_RUNS),
+                    TimeUnit.NANOSECONDS.toMillis(synced / BENCHMARK_RUNS),
+                    TimeUnit.NANOSECONDS.toMillis(unsynced / BENCHMARK_RUNS));
+        }
+    }
+
+    private static AtomicFileWriter.Content content(final byte[] contents) {
+        return new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(contents);
+            }
+        };
+    }
+
+    /**
+     * How instances used to be written.
+     */
+    private static void writeRws(byte[] contents, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot overwrite " + target);
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(target, "rws");
+        try {
+            randomAccessFile.write(contents);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void write(File file, byte[] contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                offset += in.read(contents, offset, contents.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,142 @@
+package org.odk.collect.android.utilities;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.odk.collect.android.logic.FormController.InstanceMetadata;
+import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that files encrypted in parallel can be decrypted the way the server does it, one after
+ * the other with the IV advanced for each.
+ */
+@Config(constants = BuildConfig.class)
+@RunWith(RobolectricTestRunner.class)
+public class EncryptionUtilsTest {
+
+    private static final String INSTANCE_ID = "uuid:6f7d2b6e-0c1a-4c47-9b43-4d8e1f3a2c55";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void addBouncyCastle() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Test
+    public void encryptsTheFilesInTheOrderOfTheirIvs() throws Exception {
+        Random random = new Random(42);
+        List<File> files = new ArrayList<File>();
+        files.add(writeFile("empty.jpg", new byte[0]));
+        // spans several buffers, and doesn't end on a block
+        files.add(writeFile("video.mp4", randomBytes(random, 3 * 64 * 1024 + 7)));
+        for (int i = 0; i < 8; i++) {
+            files.add(writeFile("photo" + i + ".jpg", randomBytes(random, 1000 + i)));
+        }
+        files.add(writeFile("submission.xml", "<data id=\"form\"/>".getBytes("UTF-8")));
+
+        EncryptedFormInformation formInfo = new EncryptedFormInformation("form", "1",
+                new InstanceMetadata(INSTANCE_ID, "instance", false), generatePublicKey(),
+                new Base64Wrapper());
+        int signatureStart = formInfo.elementSignatureSource.length();
+
+        EncryptionUtils.encryptFiles(files, formInfo);
+
+        byte[] iv = ivSeed(formInfo.symmetricKey.getEncoded());
+        StringBuilder signature = new StringBuilder();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            ++iv[i % iv.length];
+            Cipher cipher = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM, "BC");
+            cipher.init(Cipher.DECRYPT_MODE, formInfo.symmetricKey, new IvParameterSpec(iv));
+            File encrypted = new File(file.getParentFile(), file.getName() + ".enc");
+
+            assertArrayEquals(file.getName(), readFile(file),
+                    cipher.doFinal(readFile(encrypted)));
+            signature.append(file.getName()).append("::").append(FileUtils.computeMd5Hash(file))
+                    .append('\n');
+        }
+        assertEquals(signature.toString(),
+                formInfo.elementSignatureSource.substring(signatureStart));
+    }
+
+    /**
+     * @return the IV the first file is encrypted with before it is advanced, as the server
+     *         derives it from the instance ID and the symmetric key
+     */
+    private static byte[] ivSeed(byte[] symmetricKey) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(INSTANCE_ID.getBytes(EncryptionUtils.UTF_8));
+        md.update(symmetricKey);
+        byte[] messageDigest = md.digest();
+        byte[] iv = new byte[EncryptionUtils.IV_BYTE_LENGTH];
+        for (int i = 0; i < iv.length; i++) {
+            iv[i] = messageDigest[i % messageDigest.length];
+        }
+        return iv;
+    }
+
+    private static PublicKey generatePublicKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair().getPublic();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private File writeFile(String name, byte[] contents) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                read += in.read(contents, read, contents.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+}
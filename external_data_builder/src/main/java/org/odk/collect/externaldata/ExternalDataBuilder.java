@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.externaldata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Builds the database of an external data set from its CSV the way Collect imports it, so that
+ * the database can be shipped with the form next to the CSV.
+ *
+ * The database has the same externalData table, rows and "_key" indexes as the one built by
+ * org.odk.collect.android.external.ExternalSQLiteOpenHelper, and the same record of the CSV it
+ * was built from in user_version and the import_source table. Collect uses it as it is as long as
+ * that record matches the CSV on the device. Any change to how Collect imports CSVs has to be made
+ * here too, together with a new schema version on both sides.
+ *
+ * Usage: ExternalDataBuilder dataset.csv [dataset.db]
+ */
+public final class ExternalDataBuilder {
+
+    static final int SCHEMA_VERSION = 1;
+    static final String EXTERNAL_DATA_TABLE_NAME = "externalData";
+    static final String SORT_COLUMN_NAME = "c_sortby";
+
+    private static final char DELIMITING_CHAR = ',';
+    private static final char QUOTE_CHAR = '"';
+    private static final char ESCAPE_CHAR = '\0';
+    private static final int BATCH_SIZE = 10000;
+
+    private final File csvFile;
+    private final File dbFile;
+
+    public ExternalDataBuilder(File csvFile, File dbFile) {
+        this.csvFile = csvFile;
+        this.dbFile = dbFile;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ExternalDataBuilder <dataset.csv> [<dataset.db>]");
+            System.exit(2);
+        }
+        File csvFile = new File(args[0]);
+        File dbFile = args.length == 2 ? new File(args[1]) : defaultDbFile(csvFile);
+        try {
+            long start = System.currentTimeMillis();
+            int rowCount = new ExternalDataBuilder(csvFile, dbFile).build();
+            System.out.println("Wrote " + rowCount + " rows from " + csvFile.getName() + " to "
+                    + dbFile.getPath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | SQLException | IllegalArgumentException e) {
+            System.err.println("Unable to build " + dbFile.getPath() + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static File defaultDbFile(File csvFile) {
+        String name = csvFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(csvFile.getAbsoluteFile().getParentFile(),
+                (dot == -1 ? name : name.substring(0, dot)) + ".db");
+    }
+
+    /**
+     * Replaces the database with one built from the CSV.
+     *
+     * @return the number of rows written
+     */
+    public int build() throws IOException, SQLException {
+        if (dbFile.exists() && !dbFile.delete()) {
+            throw new IOException("Could not delete the previous " + dbFile.getPath());
+        }
+        boolean success = false;
+        try {
+            int rowCount = write();
+            success = true;
+            return rowCount;
+        } finally {
+            if (!success && dbFile.exists() && !dbFile.delete()) {
+                System.err.println("Could not delete the partially built " + dbFile.getPath());
+            }
+        }
+    }
+
+    private int write() throws IOException, SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("sqlite-jdbc is not on the classpath", e);
+        }
+
+        CSVReader reader = openReader();
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:"
+                + dbFile.getAbsolutePath());
+        try {
+            String[] headerRow = reader.readNext();
+            if (!containsAnyData(headerRow)) {
+                throw new IllegalArgumentException("The CSV file has no data");
+            }
+            List<String> conflictingColumns = findMatchingColumnsAfterSafeningNames(headerRow);
+            if (conflictingColumns != null) {
+                throw new IllegalArgumentException("The columns " + conflictingColumns
+                        + " have the same name once their invalid characters are replaced");
+            }
+
+            connection.setAutoCommit(false);
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("CREATE TABLE android_metadata (locale TEXT)");
+                statement.executeUpdate("INSERT INTO android_metadata VALUES ('en_US')");
+                statement.executeUpdate(createTableSql(headerRow));
+                connection.commit();
+
+                int rowCount = insertAll(connection, reader, headerRow);
+
+                // indexes are created last, as in Collect, because inserts are faster without them
+                for (String header : headerRow) {
+                    if (header.endsWith("_key")) {
+                        statement.executeUpdate("CREATE INDEX " + header + "_idx ON "
+                                + EXTERNAL_DATA_TABLE_NAME + " (" + toSafeColumnName(header)
+                                + ");");
+                    }
+                }
+                recordSource(connection, headerRow);
+                statement.executeUpdate("PRAGMA user_version = " + SCHEMA_VERSION);
+                connection.commit();
+                return rowCount;
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Builds the statement exactly like ExternalSQLiteOpenHelper, since SQLite keeps its text.
+     */
+    static String createTableSql(String[] headerRow) {
+        boolean sortColumnAlreadyPresent = false;
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE TABLE ");
+        sb.append(EXTERNAL_DATA_TABLE_NAME);
+        sb.append(" ( ");
+        for (int i = 0; i < headerRow.length; i++) {
+            String columnName = headerRow[i].trim();
+            if (columnName.length() == 0) {
+                continue;
+            }
+            if (i != 0) {
+                sb.append(", ");
+            }
+            String safeColumnName = toSafeColumnName(columnName);
+            if (safeColumnName.equals(SORT_COLUMN_NAME)) {
+                sortColumnAlreadyPresent = true;
+                sb.append(safeColumnName).append(" real ");
+            } else {
+                sb.append(safeColumnName).append(" text collate nocase ");
+            }
+        }
+        if (!sortColumnAlreadyPresent) {
+            sb.append(", ");
+            sb.append(SORT_COLUMN_NAME).append(" real ");
+        }
+        sb.append(" );");
+        return sb.toString();
+    }
+
+    private int insertAll(Connection connection, CSVReader reader, String[] headerRow)
+            throws IOException, SQLException {
+        int columnCount = headerRow.length;
+        // the parameter of each CSV column in the INSERT statement, or 0 if it is not stored
+        int[] parameters = new int[columnCount];
+        StringBuilder columns = new StringBuilder();
+        int parameter = 0;
+        int sortColumn = -1;
+        for (int i = 0; i < columnCount; i++) {
+            String columnName = headerRow[i].trim();
+            if (columnName.length() == 0) {
+                continue;
+            }
+            String safeColumnName = toSafeColumnName(columnName);
+            if (safeColumnName.equals(SORT_COLUMN_NAME)) {
+                sortColumn = i;
+            }
+            columns.append(parameter == 0 ? "" : ", ").append(safeColumnName);
+            parameters[i] = ++parameter;
+        }
+        int sortParameter = 0;
+        if (sortColumn == -1) {
+            columns.append(parameter == 0 ? "" : ", ").append(SORT_COLUMN_NAME);
+            sortParameter = ++parameter;
+        }
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= parameter; i++) {
+            values.append(i == 1 ? "?" : ", ?");
+        }
+
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO "
+                + EXTERNAL_DATA_TABLE_NAME + " (" + columns + ") VALUES (" + values + ")");
+        try {
+            int rowCount = 0;
+            String[] row = reader.readNext();
+            while (row != null) {
+                // empty lines are ignored, as in Collect
+                if (containsAnyData(row)) {
+                    if (sortParameter != 0) {
+                        insert.setLong(sortParameter, rowCount + 1);
+                    }
+                    // a row with fewer values than the header is filled up with empty strings
+                    boolean shortRow = row.length < columnCount;
+                    for (int i = 0; i < columnCount; i++) {
+                        if (parameters[i] == 0) {
+                            continue;
+                        }
+                        String value = i < row.length ? row[i] : null;
+                        if (value == null && shortRow) {
+                            value = "";
+                        }
+                        if (i == sortColumn) {
+                            insert.setDouble(parameters[i], parseSortValue(value));
+                        } else {
+                            insert.setString(parameters[i], value);
+                        }
+                    }
+                    insert.executeUpdate();
+                    rowCount++;
+                    if (rowCount % BATCH_SIZE == 0) {
+                        connection.commit();
+                    }
+                }
+                row = reader.readNext();
+            }
+            connection.commit();
+            return rowCount;
+        } finally {
+            insert.close();
+        }
+    }
+
+    private void recordSource(Connection connection, String[] headerRow)
+            throws IOException, SQLException {
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < headerRow.length; i++) {
+            header.append(i == 0 ? "" : "\n").append(headerRow[i]);
+        }
+
+        Statement statement = connection.createStatement();
+        PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO import_source VALUES (?, ?)");
+        try {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS import_source (md5 text, "
+                    + "header text)");
+            insert.setString(1, md5(csvFile));
+            insert.setString(2, header.toString());
+            insert.executeUpdate();
+        } finally {
+            insert.close();
+            statement.close();
+        }
+    }
+
+    private CSVReader openReader() throws IOException {
+        return new CSVReader(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"),
+                DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+    }
+
+    /**
+     * The same lowercase, zero-padded hex digest as Collect's FileUtils.
+     */
+    static String md5(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] chunk = new byte[16 * 1024];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                md.update(chunk, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        String md5 = new BigInteger(1, md.digest()).toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
+        }
+        return md5;
+    }
+
+    static String toSafeColumnName(String columnName) {
+        return "c_" + columnName.trim().replaceAll("[^A-Za-z0-9_]", "_").toLowerCase(
+                Locale.ENGLISH);
+    }
+
+    static List<String> findMatchingColumnsAfterSafeningNames(String[] columnNames) {
+        // key is the safe, value is the unsafe
+        Map<String, String> map = new HashMap<String, String>();
+        for (String columnName : columnNames) {
+            if (columnName.trim().length() > 0) {
+                String safeColumn = toSafeColumnName(columnName);
+                if (!map.containsKey(safeColumn)) {
+                    map.put(safeColumn, columnName);
+                } else {
+                    return Arrays.asList(map.get(safeColumn), columnName);
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean containsAnyData(String[] row) {
+        if (row == null || row.length == 0) {
+            return false;
+        }
+        for (String value : row) {
+            if (value != null && value.trim().length() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static double parseSortValue(String value) {
+        try {
+            return Double.parseDouble(value == null ? "" : value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The value '" + value + "' of the sortby column "
+                    + "is not a number");
+        }
+    }
+}